@@ -0,0 +1,159 @@
+package com.dbio.protocol
+
+import cats.effect.kernel.Outcome
+import cats.effect.{IO, Resource}
+import cats.implicits._
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry
+import io.micrometer.core.instrument.{Gauge, MeterRegistry, Timer}
+import org.http4s.Uri
+import org.http4s.blaze.client.BlazeClientState
+import org.http4s.client.Client
+
+import scala.concurrent.duration._
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+/** Micrometer instrumentation for the protocol client. Every timer publishes a percentile
+  * histogram, so per-stage p99s can be computed from a Prometheus scrape.
+  *
+  * Meters:
+  *   - `dbio.client.stage` -- stages of reads and writes, tagged `operation`, `stage`, `outcome`
+  *   - `dbio.ironcore.calls` -- IronCore SDK calls, tagged `call`, `outcome`
+  *   - `dbio.protocol.requests` -- requests to dbio-protocol, tagged `method`, `route`, `status`
+  *   - `dbio.protocol.requests.active` -- requests to dbio-protocol awaiting a response
+  *   - `dbio.protocol.resilience` -- hedges, retries, timeouts and calls refused by the circuit
+  *     breaker, tagged `event`
+  *   - `dbio.ingest.jobs` -- queued creates completed, retried or failed, tagged `state`
+  *   - `dbio.client.pool.connections` -- pooled connections, tagged `state` allocated or idle
+  */
+final class ClientMetrics(val registry: MeterRegistry) {
+  import ClientMetrics._
+
+  private val active = registry.gauge("dbio.protocol.requests.active", new AtomicInteger(0))
+
+  private val timers = new ConcurrentHashMap[List[String], Timer]()
+
+  /** Times `io` as `stage` of the protocol client `operation`, e.g. the decrypt stage of a get. */
+  def stage[A](operation: String, stage: String)(io: IO[A]): IO[A] =
+    time(io)(outcome => stageTimer(operation, stage, outcome))
+
+  /** Timer for a stage run outside of IO, such as parsing on the caller's side. */
+  def stageTimer(operation: String, stage: String, outcome: String): Timer =
+    timer("dbio.client.stage", "operation", operation, "stage", stage, "outcome", outcome)
+
+  /** Times an IronCore SDK call. */
+  def ironcore[A](call: String)(io: IO[A]): IO[A] =
+    time(io)(outcome => timer("dbio.ironcore.calls", "call", call, "outcome", outcome))
+
+  /** Counts a resilience event on calls to dbio-protocol, e.g. `hedge` or `retry`. */
+  def event(name: String): IO[Unit] =
+    IO(registry.counter("dbio.protocol.resilience", "event", name).increment())
+
+  /** Counts a queued create reaching `state`, e.g. `completed`. */
+  def ingested(state: String): IO[Unit] =
+    IO(registry.counter("dbio.ingest.jobs", "state", state).increment())
+
+  /** Wraps `client` so that each request is counted while active and timed, up to its response
+    * headers, by route and status.
+    */
+  def instrument(client: Client[IO]): Client[IO] =
+    Client { req =>
+      val route = ClientMetrics.route(req.uri.path)
+      for {
+        start <- Resource.eval(IO.monotonic)
+        _ <- Resource.make(IO(active.incrementAndGet()))(_ => IO(active.decrementAndGet()).void)
+        response <- client
+          .run(req)
+          .attempt
+          .evalTap { result =>
+            val status = result.fold(_ => "error", _.status.code.toString)
+            IO.monotonic.flatMap { end =>
+              record(
+                timer(
+                  "dbio.protocol.requests",
+                  "method",
+                  req.method.name,
+                  "route",
+                  route,
+                  "status",
+                  status),
+                end - start)
+            }
+          }
+          .rethrow
+      } yield response
+    }
+
+  /** Registers gauges reporting the allocated and idle connections of a Blaze pool. The pool is
+    * sampled into them in the background every `PoolSampleInterval` while the resource is in use,
+    * so a scrape only reads the last sample and never runs an effect.
+    */
+  def pool(state: BlazeClientState[IO]): Resource[IO, Unit] = {
+    val allocated = new AtomicInteger(0)
+    val idle = new AtomicInteger(0)
+    val sample = for {
+      a <- state.allocated
+      i <- state.idleQueueDepth
+      _ <- IO(allocated.set(a.values.sum))
+      _ <- IO(idle.set(i.values.sum))
+    } yield ()
+    val register = IO {
+      List("allocated" -> allocated, "idle" -> idle).foreach { case (name, connections) =>
+        Gauge
+          .builder("dbio.client.pool.connections", connections, (c: AtomicInteger) => c.doubleValue)
+          .tag("state", name)
+          .strongReference(true)
+          .register(registry)
+      }
+    }
+    Resource.eval(register *> sample) *>
+      (IO.sleep(PoolSampleInterval) *> sample).foreverM.background.void
+  }
+
+  private def time[A](io: IO[A])(timerFor: String => Timer): IO[A] =
+    IO.monotonic.flatMap { start =>
+      io.guaranteeCase(outcome =>
+        IO.monotonic.flatMap(end => record(timerFor(label(outcome)), end - start)))
+    }
+
+  /** The timer for `name` and `tags`, registered on first use and then served from a local map
+    * rather than looked up in the registry on every call.
+    */
+  private def timer(name: String, tags: String*): Timer =
+    timers.computeIfAbsent(
+      name :: tags.toList,
+      _ => Timer.builder(name).tags(tags: _*).publishPercentileHistogram().register(registry))
+
+  private def record(timer: Timer, elapsed: FiniteDuration): IO[Unit] =
+    IO(timer.record(elapsed.toNanos, TimeUnit.NANOSECONDS))
+
+}
+
+object ClientMetrics {
+
+  /** How often gauges of the connection pool are brought up to date. */
+  val PoolSampleInterval: FiniteDuration = 1.second
+
+  /** Metrics which are recorded nowhere. */
+  def noop: ClientMetrics = new ClientMetrics(new CompositeMeterRegistry())
+
+  private def label[A](outcome: Outcome[IO, Throwable, A]): String =
+    outcome match {
+      case Outcome.Succeeded(_) => "success"
+      case Outcome.Errored(_) => "error"
+      case Outcome.Canceled() => "canceled"
+    }
+
+  /** Route of a dbio-protocol request with user, resource and request ids left out, to keep the
+    * number of tag values bounded.
+    */
+  private[protocol] def route(path: Uri.Path): String =
+    path.segments.map(_.decoded()).toList.dropWhile(_ =!= "dbio").drop(1) match {
+      case "resources" :: state :: _ => s"resources/$state"
+      case requests :: "id" :: _ => s"$requests/id"
+      case first :: _ => first
+      case Nil => "/"
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.dbio.protocol
+
+import cats.effect.IO
+import cats.implicits._
+import fs2.compression.{Compression => Fs2Compression}
+import ironoxide.v1.common.UserId
+import org.http4s.ContentCoding
+import org.http4s.client.Client
+import org.http4s.client.middleware.GZip
+import org.http4s.headers.{`Content-Encoding`, `Content-Length`}
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+
+/** Settings for compressing resources before they are encrypted and on the way to dbio-protocol.
+  *
+  * @param envelope
+  *   gzip plaintexts into a versioned envelope before encrypting them; enveloped documents are
+  *   recognised and inflated on read whether or not this is on. The envelope is specific to this
+  *   client: other dBio clients decrypting such a document get the envelope, not the resource
+  * @param minBytes
+  *   smallest plaintext or request body worth compressing
+  * @param maxBytes
+  *   largest plaintext an envelope may inflate to; reads of larger ones fail rather than filling
+  *   the heap
+  * @param acceptGzip
+  *   ask dbio-protocol for gzip encoded responses and inflate them
+  * @param gzipRequests
+  *   send request bodies gzip encoded; only for a dbio-protocol which accepts `Content-Encoding`
+  */
+final case class CompressionSettings(
+  envelope: Boolean,
+  minBytes: Int,
+  maxBytes: Long,
+  acceptGzip: Boolean,
+  gzipRequests: Boolean
+)
+
+object CompressionSettings {
+  val Default: CompressionSettings = CompressionSettings(
+    envelope = false,
+    minBytes = 1024,
+    maxBytes = 64L << 20,
+    acceptGzip = false,
+    gzipRequests = false)
+}
+
+/** Compression of documents before encryption and of requests to dbio-protocol.
+  *
+  * An enveloped document is a zero byte and `DZ`, which a UTF-8 JSON document never starts with,
+  * then a version and an algorithm byte, then the compressed plaintext. Anything else is taken to
+  * be an uncompressed plaintext written before envelopes, so existing ciphertexts stay readable.
+  * Only this client knows the envelope, so other dBio clients cannot read enveloped documents.
+  *
+  * Envelopes are inflated in one place, the `decrypt` of [[crypto]], which every read of the
+  * protocol client goes through.
+  */
+object Compression {
+  private val Magic: Array[Byte] = Array[Byte](0, 'D'.toByte, 'Z'.toByte)
+  private val Version: Byte = 1
+  private val Gzip: Byte = 1
+  private val HeaderLength = Magic.length + 2
+
+  /** Whether `bytes` are an enveloped document rather than a plaintext. */
+  def isEnveloped(bytes: Array[Byte]): Boolean =
+    bytes.length >= HeaderLength && bytes.take(Magic.length).sameElements(Magic)
+
+  /** Envelopes `plaintext` gzip compressed, unless it is shorter than `minBytes` or would not get
+    * any shorter, in which case it is returned as is.
+    */
+  def compress(plaintext: Array[Byte], minBytes: Int): IO[Array[Byte]] =
+    if (plaintext.length < minBytes) IO.pure(plaintext)
+    else
+      IO {
+        val out = new ByteArrayOutputStream(HeaderLength + plaintext.length / 4)
+        out.write(Magic)
+        out.write(Version.toInt)
+        out.write(Gzip.toInt)
+        val gzip = new GZIPOutputStream(out)
+        gzip.write(plaintext)
+        gzip.close()
+        out.toByteArray
+      }.map(enveloped => if (enveloped.length < plaintext.length) enveloped else plaintext)
+
+  /** Inflates an enveloped document, returning any other bytes as they are. Fails for an envelope
+    * of a version or algorithm this client does not know, and stops with an error once it has
+    * inflated past `maxBytes`.
+    */
+  def decompress(bytes: Array[Byte], maxBytes: Long): IO[Array[Byte]] =
+    if (!isEnveloped(bytes)) IO.pure(bytes)
+    else if (bytes(Magic.length) =!= Version || bytes(Magic.length + 1) =!= Gzip)
+      IO.raiseError(
+        new IllegalArgumentException(
+          s"Unsupported document envelope: version ${bytes(Magic.length)}, " +
+            s"algorithm ${bytes(Magic.length + 1)}"))
+    else
+      IO {
+        val in = new GZIPInputStream(
+          new ByteArrayInputStream(bytes, HeaderLength, bytes.length - HeaderLength))
+        val out = new ByteArrayOutputStream(math.min(bytes.length.toLong * 4, maxBytes).toInt)
+        val buffer = new Array[Byte](8192)
+        val within = Iterator
+          .continually(in.read(buffer))
+          .takeWhile(_ >= 0)
+          .forall { n =>
+            out.write(buffer, 0, n)
+            out.size.toLong <= maxBytes
+          }
+        in.close()
+        within -> out
+      }.flatMap { case (within, out) =>
+        if (within) IO.pure(out.toByteArray)
+        else
+          IO.raiseError(
+            new IllegalArgumentException(s"Document envelope inflates past $maxBytes bytes"))
+      }
+
+  /** Document crypto compressing plaintexts per `settings` before `underlying` encrypts them, and
+    * inflating enveloped plaintexts of up to `settings.maxBytes` after it decrypts them. Both are
+    * timed in `metrics` as the
+    * `compress` stage of posts and the `decompress` stage of gets.
+    */
+  def crypto(
+    underlying: DocumentCrypto,
+    settings: CompressionSettings,
+    metrics: ClientMetrics
+  ): DocumentCrypto =
+    new DocumentCrypto {
+      def encrypt(plaintext: Array[Byte], from: UserId, to: UserId): IO[EncryptedDocument] =
+        if (!settings.envelope) underlying.encrypt(plaintext, from, to)
+        else
+          metrics
+            .stage("post", "compress")(compress(plaintext, settings.minBytes))
+            .flatMap(underlying.encrypt(_, from, to))
+
+      def decrypt(ciphertext: Array[Byte]): IO[Array[Byte]] =
+        underlying.decrypt(ciphertext).flatMap { bytes =>
+          if (isEnveloped(bytes))
+            metrics.stage("get", "decompress")(decompress(bytes, settings.maxBytes))
+          else IO.pure(bytes)
+        }
+    }
+
+  /** Client middleware applying the HTTP content encodings `settings` asks for. */
+  def http(settings: CompressionSettings)(client: Client[IO]): Client[IO] = {
+    val accepting = if (settings.acceptGzip) GZip[IO]()(client) else client
+    if (settings.gzipRequests) gzipRequests(settings.minBytes)(accepting) else accepting
+  }
+
+  /** Gzip encodes request bodies of at least `minBytes` which are not encoded already. */
+  private def gzipRequests(minBytes: Int)(client: Client[IO]): Client[IO] =
+    Client { req =>
+      val large = req.contentLength.exists(_ >= minBytes.toLong)
+      if (large && req.headers.get[`Content-Encoding`].isEmpty)
+        client.run(
+          req
+            .withBodyStream(req.body.through(Fs2Compression[IO].gzip()))
+            .removeHeader[`Content-Length`]
+            .putHeaders(`Content-Encoding`(ContentCoding.gzip)))
+      else client.run(req)
+    }
+
+}
@@ -10,6 +10,8 @@ import org.http4s.client.Client
 import org.http4s.implicits._
 import org.http4s.{Uri, _}
 
+import scala.concurrent.duration._
+
 import java.time.ZonedDateTime
 
 final case class AccessRequest(
@@ -62,6 +64,29 @@ object AccessRequestStatus {
       "request_type"
     )(AccessRequestStatus.apply)
 
+  implicit val encARS: Encoder[AccessRequestStatus] =
+    Encoder.forProduct9(
+      "id",
+      "requestor_eth_address",
+      "requestor_details",
+      "requestee_eth_address",
+      "request_approved",
+      "request_open",
+      "created_time",
+      "last_updated_time",
+      "request_type"
+    )(a =>
+      (
+        a.id,
+        a.requestorEthAddress,
+        a.requestorDetails,
+        a.requesteeEthAddress,
+        a.requestApproved,
+        a.requestOpen,
+        a.createdTime,
+        a.lastUpdatedTime,
+        a.requestType))
+
   implicit val entDecARS: EntityDecoder[IO, AccessRequestStatus] =
     jsonOf[IO, AccessRequestStatus]
 
@@ -72,22 +97,40 @@ object AccessRequestStatus {
 object DbioAccessControl {
   val ReadType: String = "ReadRequest"
   val WriteType: String = "WriteRequest"
+  val Types: List[String] = List(ReadType, WriteType)
   val Base: Uri = uri"http://dbio-protocol:8080/dbio"
   val ReadRequests = Base / "read_requests"
   val WriteRequests = Base / "write_requests"
 
+  /** Route for access requests of `requestType`, failing for a type other than [[Types]]. */
+  private def routeFor(requestType: String): IO[Uri] =
+    requestType match {
+      case ReadType => IO.pure(ReadRequests)
+      case WriteType => IO.pure(WriteRequests)
+      case other =>
+        IO.raiseError(new IllegalArgumentException(s"Unknown access request type: $other"))
+    }
+
   private def doPost(ar: AccessRequest, to: Uri): ReaderT[IO, Client[IO], AccessRequestStatus] = {
     val req = Request[IO](method = POST, uri = to).withEntity(ar)
     ReaderT(client => client.fetchAs[AccessRequestStatus](req))
   }
 
+  /** Posts an access request of `requestType` for a given user. */
+  def postRequest(
+    requestType: String,
+    ar: AccessRequest,
+    client: Client[IO]
+  ): IO[AccessRequestStatus] =
+    routeFor(requestType).flatMap(doPost(ar, _).map(_.withType(requestType)).run(client))
+
   /** Posts a DbioReadRequest for a given user. */
   def postReadRequest(ar: AccessRequest, client: Client[IO]): IO[AccessRequestStatus] =
-    doPost(ar, ReadRequests).map(_.withType(ReadType)).run(client)
+    postRequest(ReadType, ar, client)
 
   /** Posts a DbioWriteRequest for a given user. */
   def postWriteRequest(ar: AccessRequest, client: Client[IO]): IO[AccessRequestStatus] =
-    doPost(ar, WriteRequests).map(_.withType(WriteType)).run(client)
+    postRequest(WriteType, ar, client)
 
   private def doGetList(
     requesteeEth: String,
@@ -103,34 +146,116 @@ object DbioAccessControl {
   ): ReaderT[IO, Client[IO], AccessRequestStatus] =
     ReaderT(client => client.expect[AccessRequestStatus](uri / "id" / id))
 
+  /** Gets the open access requests of `requestType` for the given user. */
+  def getRequests(
+    requestType: String,
+    requestee: String,
+    client: Client[IO]
+  ): IO[List[AccessRequestStatus]] =
+    routeFor(requestType).flatMap { uri =>
+      doGetList(requestee, uri).map(_.map(_.withType(requestType))).run(client)
+    }
+
   /** Gets list of DbioReadRequests for the given user. */
   def getReadRequests(requestee: String, client: Client[IO]): IO[List[AccessRequestStatus]] =
-    doGetList(requestee, ReadRequests).map(_.map(_.withType(ReadType))).run(client)
+    getRequests(ReadType, requestee, client)
 
   /** Gets list of DbioWriteRequests for the given user. */
   def getWriteRequests(requestee: String, client: Client[IO]): IO[List[AccessRequestStatus]] =
-    doGetList(requestee, WriteRequests).map(_.map(_.withType(WriteType))).run(client)
+    getRequests(WriteType, requestee, client)
+
+  /** Gets a single access request of `requestType` by id, without checking who it is for. */
+  private[protocol] def fetchRequest(
+    requestType: String,
+    id: Int,
+    client: Client[IO]
+  ): IO[AccessRequestStatus] =
+    routeFor(requestType).flatMap(doGet(id, _).map(_.withType(requestType)).run(client))
+
+  /** Fails unless `a` was made by `requestor`. */
+  private[protocol] def checkRequestor(
+    a: AccessRequestStatus,
+    requestor: String
+  ): IO[AccessRequestStatus] =
+    if (a.requestorEthAddress === requestor) IO.pure(a)
+    else
+      IO.raiseError(
+        new IllegalAccessError(s"[DbioAccessControl] AccessRequest not for requestor=$requestor"))
+
+  /** Gets a single access request of `requestType` for the given user and requestor pair. */
+  def getRequest(
+    requestType: String,
+    id: Int,
+    requestor: String,
+    client: Client[IO]
+  ): IO[AccessRequestStatus] =
+    fetchRequest(requestType, id, client).flatMap(checkRequestor(_, requestor))
 
   /** Gets single DbioReadRequest for the given user and requestor pair. */
   def getReadRequest(id: Int, requestor: String, client: Client[IO]): IO[AccessRequestStatus] =
-    doGet(id, ReadRequests)
-      .run(client)
-      .flatMap(a =>
-        if (a.requestorEthAddress === requestor) IO.pure(a.withType(ReadType))
-        else
-          IO.raiseError(
-            new IllegalAccessError(
-              s"[DbioAccessControl] AccessRequest not for requestor=$requestor")))
+    getRequest(ReadType, id, requestor, client)
 
   /** Gets single DbioWriteRequests for the given user and requestor pair. */
   def getWriteRequest(id: Int, requestor: String, client: Client[IO]): IO[AccessRequestStatus] =
-    doGet(id, WriteRequests)
-      .run(client)
-      .flatMap(a =>
-        if (a.requestorEthAddress === requestor) IO.pure(a.withType(WriteType))
-        else
-          IO.raiseError(
-            new IllegalAccessError(
-              s"[DbioAccessControl] AccessRequest not for requestor=$requestor")))
+    getRequest(WriteType, id, requestor, client)
+
+}
+
+/** Access request calls through short-lived caches of request statuses, by type and id and by type
+  * and requestee, so that frequent status polls mostly stay local. Concurrent lookups of the same
+  * key share one call to dbio-protocol. Listing a requestee's requests also caches each request by
+  * id, and creating a request drops its requestee's cached list.
+  */
+final class AccessRequestCache private (
+  byId: Memo[(String, Int), AccessRequestStatus],
+  byRequestee: Memo[(String, String), List[AccessRequestStatus]]
+) {
+  import DbioAccessControl._
+
+  /** Gets the open access requests of every type in `requestTypes` for the given user, querying
+    * the types concurrently and returning them in the order given.
+    */
+  def search(
+    requestee: String,
+    requestTypes: List[String],
+    client: Client[IO]
+  ): IO[List[AccessRequestStatus]] =
+    requestTypes
+      .parTraverse { requestType =>
+        byRequestee.getOrLoad(requestType -> requestee) {
+          getRequests(requestType, requestee, client).flatTap(
+            _.traverse_(a => byId.put(requestType -> a.id, a)))
+        }
+      }
+      .map(_.flatten)
+
+  /** Gets a single access request for the given requestor, as [[DbioAccessControl.getRequest]]. */
+  def get(
+    requestType: String,
+    id: Int,
+    requestor: String,
+    client: Client[IO]
+  ): IO[AccessRequestStatus] =
+    byId
+      .getOrLoad(requestType -> id)(fetchRequest(requestType, id, client))
+      .flatMap(checkRequestor(_, requestor))
+
+  /** Posts an access request, as [[DbioAccessControl.postRequest]], and updates the caches. */
+  def post(requestType: String, ar: AccessRequest, client: Client[IO]): IO[AccessRequestStatus] =
+    postRequest(requestType, ar, client).flatTap { a =>
+      byRequestee.invalidate(requestType -> ar.requesteeEthAddress) *>
+        byId.put(requestType -> a.id, a)
+    }
+
+}
+
+object AccessRequestCache {
+
+  /** Creates caches holding at most `maxSize` entries each for `ttlSeconds`. */
+  def create(maxSize: Int, ttlSeconds: Long): IO[AccessRequestCache] =
+    (
+      Memo[(String, Int), AccessRequestStatus](maxSize, Some(ttlSeconds.seconds)),
+      Memo[(String, String), List[AccessRequestStatus]](maxSize, Some(ttlSeconds.seconds))
+    ).mapN(new AccessRequestCache(_, _))
 
 }
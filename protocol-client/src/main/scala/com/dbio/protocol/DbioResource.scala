@@ -4,10 +4,7 @@ import cats.data.ReaderT
 import cats.effect.IO
 import cats.implicits._
 import io.circe.generic.auto._
-import io.circe.parser.parse
-import io.circe.syntax._
 import io.circe.{Decoder, Encoder, Json}
-import ironoxide.v1.IronOxide
 import ironoxide.v1.common.UserId
 import org.http4s._
 import org.http4s.blaze.client.BlazeClientBuilder
@@ -15,15 +12,50 @@ import org.http4s.circe.{jsonEncoderOf, jsonOf}
 import org.http4s.client.Client
 import org.http4s.dsl.io._
 import org.http4s.implicits._
+import org.slf4j.LoggerFactory
+
+import scala.concurrent.duration._
 
 import java.time.ZonedDateTime
+import java.util.Base64
 
 /** Packages necessary client dependencies as one object. */
 final case class InjectClients(
-  iron: IronOxide[IO],
-  client: Client[IO]
+  crypto: DocumentCrypto,
+  client: Client[IO],
+  users: Memo[String, User],
+  resources: ResourceCache,
+  locations: Memo[ResourceKey, Uri],
+  writes: WriteIndex,
+  metrics: ClientMetrics
 )
 
+/** Connection pool settings for the shared protocol client.
+  *
+  * @param maxTotalConnections
+  *   upper bound on open connections across all hosts
+  * @param maxConnectionsPerHost
+  *   upper bound on open connections to a single scheme/host/port
+  * @param idleTimeoutMillis
+  *   how long an idle connection is kept before being closed
+  * @param requestTimeoutMillis
+  *   deadline for a request to complete, including waiting for a pooled connection
+  */
+final case class ClientSettings(
+  maxTotalConnections: Int,
+  maxConnectionsPerHost: Int,
+  idleTimeoutMillis: Long,
+  requestTimeoutMillis: Long
+)
+
+object ClientSettings {
+  val Default: ClientSettings = ClientSettings(
+    maxTotalConnections = 10,
+    maxConnectionsPerHost = 256,
+    idleTimeoutMillis = 60000,
+    requestTimeoutMillis = 45000)
+}
+
 /** A registered user in the dBio system. */
 final case class User(
   ethPublicAddress: String,
@@ -35,6 +67,9 @@ object User {
   implicit val userDecoder: Decoder[User] =
     Decoder.forProduct2("eth_public_address", "email")(User.apply)
 
+  implicit val userEncoder: Encoder[User] =
+    Encoder.forProduct2("eth_public_address", "email")(u => (u.ethPublicAddress, u.email))
+
   implicit val userEntityDecoder: EntityDecoder[IO, User] =
     jsonOf[IO, User]
 
@@ -49,7 +84,8 @@ object Requestor {
   implicit val reqEntEnc: EntityEncoder[IO, Requestor] = jsonEncoderOf[IO, Requestor]
 }
 
-/** Request constructed by caller to POST a Resource to the dBio protocol.
+/** Request constructed by caller to POST a Resource to the dBio protocol. The plaintext is the
+  * resource's UTF-8 JSON, encrypted as is without being parsed or re-encoded.
   */
 final case class DbioPostRequest(
   subjectEmail: String,
@@ -57,7 +93,7 @@ final case class DbioPostRequest(
   creatorEthAddress: String,
   fhirResourceType: String,
   fhirResourceId: String,
-  plaintext: String
+  plaintext: Array[Byte]
 )
 
 /** Response from dBio protocol after posting a Resource.
@@ -84,6 +120,24 @@ object DbioPostResponse {
       "ciphertext",
       "timestamp")(DbioPostResponse.apply)
 
+  implicit val postEncoder: Encoder[DbioPostResponse] =
+    Encoder.forProduct7(
+      "fhir_resource_id",
+      "ironcore_document_id",
+      "subject_eth_address",
+      "creator_eth_address",
+      "fhir_resource_type",
+      "ciphertext",
+      "timestamp")(r =>
+      (
+        r.fhirResourceId,
+        r.ironcoreDocumentId,
+        r.subjectEthAddress,
+        r.creatorEthAddress,
+        r.fhirResourceType,
+        r.ciphertext,
+        r.timestamp))
+
   implicit val decodeResponse: EntityDecoder[IO, DbioPostResponse] =
     jsonOf[IO, DbioPostResponse]
 
@@ -114,6 +168,15 @@ object PostPayload {
       )
     }
 
+  implicit val postDecoder: Decoder[PostPayload] =
+    Decoder.forProduct6(
+      "email",
+      "creator_eth_address",
+      "fhir_resource_type",
+      "fhir_resource_id",
+      "ironcore_document_id",
+      "ciphertext")(PostPayload.apply)
+
   implicit val postEntityEncoder: EntityEncoder[IO, PostPayload] =
     jsonEncoderOf[IO, PostPayload]
 
@@ -128,11 +191,12 @@ final case class DbioGetRequest(
   resourceId: String
 )
 
-/** Response from protocol server containing a resource in plaintext and metadata.
+/** Response from protocol server containing a resource in plaintext and metadata. The plaintext is
+  * the resource's decrypted UTF-8 JSON, left for the caller to parse.
   */
 final case class DbioGetResponse(
   resource: DbioResource,
-  plaintext: Json
+  plaintext: Array[Byte]
 )
 
 /** Persisted ciphertext from IPFS containing JSON of a FHIR resource.
@@ -147,6 +211,8 @@ final case class DbioResource(
 
 object DbioResource {
 
+  private val log = LoggerFactory.getLogger(classOf[DbioResource])
+
   implicit val resourceDecoder: Decoder[DbioResource] =
     Decoder.forProduct5(
       "cid",
@@ -155,20 +221,107 @@ object DbioResource {
       "fhir_resource_id",
       "fhir_resource_type")(DbioResource.apply)
 
+  implicit val resourceEncoder: Encoder[DbioResource] =
+    Encoder.forProduct5(
+      "cid",
+      "ciphertext",
+      "ironcore_document_id",
+      "fhir_resource_id",
+      "fhir_resource_type")(r =>
+      (r.cid, r.ciphertext, r.ironcoreDocumentId, r.fhirResourceId, r.fhirResourceType))
+
   implicit val resourceEntityDecoder: EntityDecoder[IO, DbioResource] = jsonOf[IO, DbioResource]
 
-  val allocateClient: IO[(Client[IO], IO[Unit])] = BlazeClientBuilder[IO].allocated
+  /** Allocates a protocol client with Blaze's default pool; the second element releases it. */
+  def allocateClient: IO[(Client[IO], IO[Unit])] = allocateClient(ClientSettings.Default)
+
+  /** Allocates a protocol client sized by `settings`; the second element releases the pool. */
+  def allocateClient(settings: ClientSettings): IO[(Client[IO], IO[Unit])] =
+    allocateClient(settings, ResilienceSettings.Default, ClientMetrics.noop)
+
+  /** Allocates a protocol client sized by `settings`, behind the `resilience` layer, whose requests
+    * and pool are reported to `metrics`; the second element releases the pool.
+    */
+  def allocateClient(
+    settings: ClientSettings,
+    resilience: ResilienceSettings,
+    metrics: ClientMetrics
+  ): IO[(Client[IO], IO[Unit])] =
+    allocateClient(settings, resilience, CompressionSettings.Default, metrics)
+
+  /** Allocates a protocol client like the above, compressing requests and responses as
+    * `compression` asks.
+    */
+  def allocateClient(
+    settings: ClientSettings,
+    resilience: ResilienceSettings,
+    compression: CompressionSettings,
+    metrics: ClientMetrics
+  ): IO[(Client[IO], IO[Unit])] =
+    Resilience
+      .create(resilience, metrics)
+      .flatMap(allocateClient(settings, _, compression, metrics))
+
+  /** Allocates a protocol client like the above behind a resilience `layer` created by the caller,
+    * e.g. to report on its circuit.
+    */
+  def allocateClient(
+    settings: ClientSettings,
+    layer: Resilience,
+    compression: CompressionSettings,
+    metrics: ClientMetrics
+  ): IO[(Client[IO], IO[Unit])] =
+    BlazeClientBuilder[IO]
+      .withMaxTotalConnections(settings.maxTotalConnections)
+      .withMaxConnectionsPerRequestKey(_ => settings.maxConnectionsPerHost)
+      .withIdleTimeout(settings.idleTimeoutMillis.millis)
+      .withRequestTimeout(settings.requestTimeoutMillis.millis)
+      .resourceWithState
+      .flatMap { case (client, state) =>
+        metrics.pool(state).as(layer(metrics.instrument(Compression.http(compression)(client))))
+      }
+      .allocated
+
   private val Base: Uri = uri"http://dbio-protocol:8080/dbio"
   private val ResourcesClaimed: Uri = Base / "resources" / "claimed"
   private val ResourcesUnclaimed: Uri = Base / "resources" / "unclaimed"
   private val UserByEmail: Uri = Base / "users" / "email"
 
-  /** Get a User's information given their email address. */
-  private def getUser(email: String): ReaderT[IO, Client[IO], User] =
+  /** Creates a cache remembering, for `ttlSeconds`, whether a resource was last found claimed or
+    * unclaimed.
+    */
+  def locationCache(maxSize: Int, ttlSeconds: Long): IO[Memo[ResourceKey, Uri]] =
+    Memo[ResourceKey, Uri](maxSize, Some(ttlSeconds.seconds))
+
+  /** Creates a user cache holding at most `maxSize` email to User mappings for `ttlSeconds`. */
+  def userCache(maxSize: Int, ttlSeconds: Long): IO[Memo[String, User]] =
+    Memo[String, User](maxSize, Some(ttlSeconds.seconds))
+
+  private def fetchUser(email: String): ReaderT[IO, Client[IO], User] =
     ReaderT { client =>
       client.expect[User](UserByEmail / email)
     }
 
+  /** Get a User's information given their email address, consulting the user cache first. */
+  private def getUser(email: String): ReaderT[IO, InjectClients, User] =
+    ReaderT(clients => clients.users.getOrLoad(email)(fetchUser(email).run(clients.client)))
+
+  /** Resolves a user once and keeps them cached for the lifetime of the process. Intended for the
+    * provider's own identity, which is the requestor on every read.
+    */
+  def pinUser(email: String): ReaderT[IO, InjectClients, User] =
+    ReaderT(clients => pinUser(email, clients.users, clients.client))
+
+  /** Pins a user like [[pinUser]] before the rest of the protocol clients exist, e.g. concurrently
+    * with IronCore login at startup.
+    */
+  def pinUser(email: String, users: Memo[String, User], client: Client[IO]): IO[User] =
+    users.pin(email)(fetchUser(email).run(client))
+
+  /** Forgets any cached information for the given user. */
+  def invalidateUser(email: String): ReaderT[IO, InjectClients, Unit] =
+    ReaderT(clients => clients.users.invalidate(email))
+
   private def resourceRequest(
     user: User,
     requestor: Requestor,
@@ -180,48 +333,157 @@ object DbioResource {
     Request[IO](method = GET, uri = route)
   }
 
-  /** Reads a ciphertext resource from the backend and decrypts it. */
+  /** Reads a resource, from the decrypted resource cache when possible and otherwise by fetching
+    * its ciphertext from the backend and decrypting it.
+    */
   def get(req: DbioGetRequest): ReaderT[IO, InjectClients, DbioGetResponse] =
-    ReaderT { case InjectClients(iron, client) =>
+    ReaderT { clients =>
+      read(req, users(req.requesteeEmail, req.requestorEmail).run(clients)).run(clients)
+    }
+
+  /** Reads many resources of one type for one subject, at most `parallelism` at a time. The subject
+    * and requestor are looked up once for the whole batch, and only if some resource is not cached.
+    * Results are returned in id order, each either the failure for that id or its resource, so one
+    * unreadable id does not fail the rest.
+    */
+  def getAll(
+    requesteeEmail: String,
+    requestorEmail: String,
+    resourceType: String,
+    ids: List[String],
+    parallelism: Int
+  ): ReaderT[IO, InjectClients, List[Either[Throwable, DbioGetResponse]]] =
+    ReaderT { clients =>
+      users(requesteeEmail, requestorEmail).run(clients).memoize.flatMap { resolved =>
+        IO.parTraverseN(parallelism)(ids) { id =>
+          read(DbioGetRequest(requesteeEmail, requestorEmail, resourceType, id), resolved)
+            .run(clients)
+            .attempt
+        }
+      }
+    }
+
+  /** Looks up the subject and the requestor of a read concurrently. */
+  private def users(
+    requesteeEmail: String,
+    requestorEmail: String
+  ): ReaderT[IO, InjectClients, (User, Requestor)] =
+    ReaderT { clients =>
+      clients.metrics.stage("get", "users") {
+        (getUser(requesteeEmail).run(clients), getUser(requestorEmail).run(clients)).parMapN {
+          (subject, requestor) => subject -> Requestor(requestor.ethPublicAddress)
+        }
+      }
+    }
+
+  /** Reads a resource through the resource cache, running `users` only on a cache miss. */
+  private def read(
+    req: DbioGetRequest,
+    users: IO[(User, Requestor)]
+  ): ReaderT[IO, InjectClients, DbioGetResponse] =
+    ReaderT { clients =>
+      val key = ResourceKey(req.requesteeEmail, req.resourceType, req.resourceId)
+      clients.metrics.stage("get", "total") {
+        clients.resources
+          .getOrLoad(key)(fetch(req, users).run(clients))
+          .map(cached => DbioGetResponse(cached.resource, cached.plaintext))
+      }
+    }
+
+  /** Fetches a resource from wherever it was last found. Otherwise, or if it is no longer there,
+    * queries the claimed and unclaimed routes concurrently and remembers which one answered. A
+    * failure of dbio-protocol itself, an open circuit, a timeout or a server error, is raised as it
+    * is rather than answered with two more requests.
+    */
+  private def locate(
+    key: ResourceKey,
+    route: Uri => Request[IO]
+  ): ReaderT[IO, InjectClients, DbioResource] =
+    ReaderT { clients =>
+      def at(base: Uri): IO[(Uri, DbioResource)] =
+        clients.client.expect[DbioResource](route(base)).map(base -> _)
+      val race = Resilience.firstSuccess(at(ResourcesClaimed), at(ResourcesUnclaimed))
+        .flatTap { case (base, _) => clients.locations.put(key, base) }
+      clients.locations.get(key).flatMap {
+        case Some(base) =>
+          at(base).handleErrorWith {
+            case e if Resilience.unavailable(e) => IO.raiseError(e)
+            case _ => clients.locations.invalidate(key) *> race
+          }
+        case None => race
+      }.map(_._2)
+    }
+
+  /** Reads a ciphertext resource from the backend and decrypts it. */
+  private def fetch(
+    req: DbioGetRequest,
+    users: IO[(User, Requestor)]
+  ): ReaderT[IO, InjectClients, CachedResource] =
+    ReaderT { clients =>
+      val key = ResourceKey(req.requesteeEmail, req.resourceType, req.resourceId)
       for {
-        subject <- getUser(req.requesteeEmail).run(client)
-        _requestor <- getUser(req.requestorEmail).run(client)
-        requestor = Requestor(_requestor.ethPublicAddress)
-        claimed = resourceRequest(subject, requestor, req, ResourcesClaimed)
-        unclaimed = resourceRequest(subject, requestor, req, ResourcesUnclaimed)
-        resource <- client.fetch[DbioResource](claimed) { response =>
-          if (response.status.isSuccess) response.as[DbioResource]
-          else client.expect[DbioResource](unclaimed)
+        (subject, requestor) <- users
+        resource <- clients.metrics.stage("get", "fetch") {
+          locate(key, resourceRequest(subject, requestor, req, _))
+            .run(clients)
+            .onError { case _ => clients.users.invalidate(req.requesteeEmail) }
+        }
+        plaintext <- clients.metrics.stage("get", "decrypt") {
+          IO(Base64.getDecoder.decode(resource.ciphertext)).flatMap(clients.crypto.decrypt)
         }
-        plaintext <- IronCore.decrypt(resource.ciphertext).run(iron)
-      } yield DbioGetResponse(resource, plaintext)
+      } yield CachedResource(resource.copy(ciphertext = ""), plaintext)
     }
 
   /** Posts given plaintext to dBio backend as an encrypted and unclaimed resource. Encrypts
     * plaintext to a transfer group between this third party (creator) and intended user (subject).
     */
   def post(req: DbioPostRequest): ReaderT[IO, InjectClients, DbioPostResponse] =
-    ReaderT { case InjectClients(iron, client) =>
-      val payload = for {
-        json <- ReaderT.liftF(IO.fromEither(parse(req.plaintext)))
-        result <- IronCore.transferEncrypt(
-          json,
-          from = UserId(req.creatorEmail),
-          to = UserId(req.subjectEmail))
-      } yield PostPayload(
-        email = req.subjectEmail,
-        creatorEthAddress = req.creatorEthAddress,
-        fhirResourceType = req.fhirResourceType,
-        fhirResourceId = req.fhirResourceId,
-        ironcoreDocumentId = result.id.id,
-        ciphertext = result.encryptedData.toBase64
-      )
+    ReaderT { clients =>
       for {
-        body <- payload.run(iron)
-        _ <- IO.println(s"[DbioResource] POST JSON payload: ${body.asJson.noSpaces}")
+        doc <- clients.metrics.stage("post", "encrypt") {
+          clients.crypto.encrypt(
+            req.plaintext,
+            from = UserId(req.creatorEmail),
+            to = UserId(req.subjectEmail))
+        }
+        body = PostPayload(
+          email = req.subjectEmail,
+          creatorEthAddress = req.creatorEthAddress,
+          fhirResourceType = req.fhirResourceType,
+          fhirResourceId = req.fhirResourceId,
+          ironcoreDocumentId = doc.id,
+          ciphertext = Base64.getEncoder.encodeToString(doc.ciphertext)
+        )
+        _ <- IO {
+          if (log.isDebugEnabled)
+            log.debug(
+              s"[DbioResource] POST ${body.fhirResourceType}/${body.fhirResourceId} " +
+                s"document=${body.ironcoreDocumentId} (${body.ciphertext.length} base64 chars)")
+        }
         req = Request[IO](method = POST, uri = ResourcesUnclaimed).withEntity(body)
-        out <- client.expect[DbioPostResponse](req)
+        out <- clients.metrics.stage("post", "upload")(clients.client.expect[DbioPostResponse](req))
       } yield out
     }
 
+  /** Posts a resource unless this proxy already wrote the same content for the subject, in which
+    * case the recorded response is returned without encrypting or uploading anything.
+    */
+  def create(req: DbioPostRequest): ReaderT[IO, InjectClients, DbioPostOutcome] =
+    ReaderT { clients =>
+      val key = ResourceKey(req.subjectEmail, req.fhirResourceType, req.fhirResourceId)
+      clients.metrics.stage("post", "total") {
+        clients.writes.getOrCreate(key)(post(req).run(clients))
+      }
+    }
+
+  /** Creates many resources concurrently, at most `parallelism` at a time. Results are returned in
+    * request order, each either the failure for that request or its outcome, so one bad entry does
+    * not fail the batch. Requests for the same subject share one transfer group.
+    */
+  def createAll(
+    reqs: List[DbioPostRequest],
+    parallelism: Int
+  ): ReaderT[IO, InjectClients, List[Either[Throwable, DbioPostOutcome]]] =
+    ReaderT(clients => IO.parTraverseN(parallelism)(reqs)(req => create(req).run(clients).attempt))
+
 }
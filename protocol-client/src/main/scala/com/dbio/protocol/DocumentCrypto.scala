@@ -0,0 +1,27 @@
+package com.dbio.protocol
+
+import cats.effect.IO
+import ironoxide.v1.common.UserId
+
+/** Ciphertext of a document along with the id it was registered under. */
+final case class EncryptedDocument(
+  id: String,
+  ciphertext: Array[Byte]
+)
+
+/** Encryption backend the protocol client writes and reads resources through. */
+trait DocumentCrypto {
+
+  /** Encrypts `plaintext` so that the intended user `to` can decrypt it.
+    *
+    * @param from
+    *   third party writing the document
+    * @param to
+    *   dbio user for which the document is intended
+    */
+  def encrypt(plaintext: Array[Byte], from: UserId, to: UserId): IO[EncryptedDocument]
+
+  /** Decrypts a document this third party has been granted access to. */
+  def decrypt(ciphertext: Array[Byte]): IO[Array[Byte]]
+
+}
@@ -0,0 +1,422 @@
+package com.dbio.protocol
+
+import cats.effect.std.{Queue, Semaphore, Supervisor}
+import cats.effect.{IO, Ref, Resource}
+import cats.implicits._
+import io.circe.parser.decode
+import io.circe.syntax._
+import io.circe.{Decoder, Encoder, Json}
+import org.slf4j.LoggerFactory
+
+import scala.concurrent.duration._
+
+import java.nio.charset.StandardCharsets
+import java.nio.file._
+import java.util.{Base64, UUID}
+
+/** Settings for write-behind ingestion.
+  *
+  * @param workers
+  *   fibers draining the queue, each creating one batch at a time
+  * @param batchSize
+  *   most queued creates taken and uploaded together by one worker
+  * @param maxAttempts
+  *   attempts at a create before it is given up as failed; attempts failing because dbio-protocol
+  *   is unavailable are not counted
+  * @param retryBaseDelayMillis
+  *   delay before the second attempt, doubling for each attempt after it
+  * @param statusCacheSize
+  *   job statuses kept for status lookups, the least recently used dropped first
+  * @param capacity
+  *   creates accepted and not yet finished, whether queued, being uploaded or waiting to be
+  *   retried, past which new ones are refused
+  * @param compactAfter
+  *   jobs finished between rewrites of the journal without them
+  */
+final case class IngestSettings(
+  workers: Int,
+  batchSize: Int,
+  maxAttempts: Int,
+  retryBaseDelayMillis: Long,
+  statusCacheSize: Int,
+  capacity: Int,
+  compactAfter: Int
+)
+
+object IngestSettings {
+  val Default: IngestSettings = IngestSettings(
+    workers = 4,
+    batchSize = 16,
+    maxAttempts = 5,
+    retryBaseDelayMillis = 1000,
+    statusCacheSize = 10000,
+    capacity = 10000,
+    compactAfter = 1000)
+}
+
+/** Raised instead of queueing a create while `capacity` creates are already unfinished. */
+final class IngestQueueFullException(val capacity: Int)
+    extends RuntimeException(s"Ingest queue is full ($capacity creates unfinished), retry later")
+
+/** Where a queued create stands. `state` is one of `queued`, `completed` or `failed`; `error` is
+  * the most recent failure, kept while the create is retried. A failed create is kept as a dead
+  * letter until it is re-driven.
+  */
+final case class IngestStatus(
+  job: String,
+  resourceType: String,
+  resourceId: String,
+  state: String,
+  attempts: Int,
+  error: Option[String]
+)
+
+object IngestStatus {
+  val Queued = "queued"
+  val Completed = "completed"
+  val Failed = "failed"
+}
+
+/** Write-behind queue for creates. A submitted create is appended to a JSON-lines journal, synced
+  * to disk, and acknowledged; worker fibers then encrypt and upload queued creates in batches,
+  * retrying failures with exponential backoff, and journal each as completed or failed. On startup
+  * creates the journal does not show as finished are queued again, so every accepted create is
+  * uploaded at least once. Repeats are absorbed by the [[WriteIndex]].
+  *
+  * While dbio-protocol is unavailable creates wait, for as long as the circuit stays open, without
+  * using up their attempts. A create which fails for any other reason `maxAttempts` times is kept
+  * as a dead letter, in memory and in the journal, until it is re-driven. At most `capacity`
+  * creates are unfinished at a time, counting those being uploaded or waiting to be retried; past
+  * that [[submit]] fails with [[IngestQueueFullException]].
+  *
+  * A worker never stops on an error: a create whose upload or journaling fails unexpectedly, e.g.
+  * because the journal cannot be written, is logged and queued again without using up an attempt.
+  *
+  * The journal holds resources in plaintext until they are uploaded, so it is created readable by
+  * its owner only, and it is rewritten without finished creates every `compactAfter` of them as
+  * well as on startup.
+  */
+final class IngestQueue private (
+  settings: IngestSettings,
+  file: Option[Path],
+  appending: Semaphore[IO],
+  finishedSinceCompaction: Ref[IO, Int],
+  unfinished: Ref[IO, Int],
+  pending: Queue[IO, IngestQueue.Job],
+  statuses: Memo[String, IngestStatus],
+  dead: Ref[IO, Map[String, IngestQueue.DeadLetter]],
+  delayed: Supervisor[IO]
+) {
+  import IngestQueue._
+
+  /** Journals `req` and queues it for upload, returning its status once it is durable. Fails with
+    * [[IngestQueueFullException]], journaling nothing, when the queue is full.
+    */
+  def submit(req: DbioPostRequest): IO[IngestStatus] =
+    unfinished
+      .modify(n => if (n >= settings.capacity) n -> false else (n + 1) -> true)
+      .ifM(
+        (for {
+          id <- IO(UUID.randomUUID().toString)
+          _ <- append(Enqueued(id, req))
+          _ <- statuses.put(id, queued(id, req))
+          offered <- pending.tryOffer(Job(id, req, 1))
+          _ <-
+            if (offered) IO.unit
+            else
+              markDone(id, Rejected) *> statuses.invalidate(id) *>
+                IO.raiseError(new IngestQueueFullException(settings.capacity))
+        } yield queued(id, req)).onError { case _ => unfinished.update(_ - 1) },
+        IO.raiseError(new IngestQueueFullException(settings.capacity))
+      )
+
+  /** Returns the status of a job, unless it is unknown or its status has been dropped. Statuses of
+    * dead letters are never dropped.
+    */
+  def status(job: String): IO[Option[IngestStatus]] =
+    dead.get.flatMap(_.get(job).fold(statuses.get(job))(letter => IO.pure(Some(letter.status))))
+
+  /** Statuses of the creates given up as failed and not re-driven since. */
+  def deadLetters: IO[List[IngestStatus]] = dead.get.map(_.values.map(_.status).toList)
+
+  /** Queues a dead letter again with a fresh set of attempts, returning its new status, or None if
+    * `job` is not a dead letter.
+    */
+  def redrive(job: String): IO[Option[IngestStatus]] =
+    dead.modify(letters => (letters - job, letters.get(job))).flatMap {
+      case Some(DeadLetter(req, _)) =>
+        for {
+          _ <- append(Enqueued(job, req))
+          _ <- unfinished.update(_ + 1)
+          _ <- statuses.put(job, queued(job, req))
+          _ <- delayed.supervise(pending.offer(Job(job, req, 1)))
+        } yield Some(queued(job, req))
+      case None => IO.pure(None)
+    }
+
+  /** Creates queued requests in batches, forever. An error escaping a batch is logged and the
+    * worker carries on with the next one.
+    */
+  private def drain(clients: InjectClients): IO[Unit] =
+    (for {
+      first <- pending.take
+      rest <- takeUpTo(settings.batchSize - 1)
+      _ <- create(first :: rest, clients)
+    } yield ())
+      .handleErrorWith(e => IO(log.error(s"[IngestQueue] Worker error: ${e.getMessage}", e)))
+      .foreverM
+
+  private def create(batch: List[Job], clients: InjectClients): IO[Unit] =
+    DbioResource.createAll(batch.map(_.request), batch.size).run(clients).attempt.flatMap {
+      case Right(results) =>
+        batch.zip(results).traverse_ { case (job, result) =>
+          finish(job, result, clients).handleErrorWith(stalled(job, _, clients))
+        }
+      case Left(e) => batch.traverse_(stalled(_, e, clients))
+    }
+
+  /** Queues `job` again, without using up an attempt, after its upload or journaling failed in a
+    * way the retry policy does not cover.
+    */
+  private def stalled(job: Job, e: Throwable, clients: InjectClients): IO[Unit] =
+    IO(log.error(s"[IngestQueue] Unable to finish job ${job.id}, queueing it again: $e", e)) *>
+      clients.metrics.ingested("stalled") *>
+      later(job, settings.retryBaseDelayMillis.millis)
+
+  private def takeUpTo(n: Int): IO[List[Job]] =
+    if (n <= 0) IO.pure(Nil)
+    else
+      pending.tryTake.flatMap {
+        case Some(job) => takeUpTo(n - 1).map(job :: _)
+        case None => IO.pure(Nil)
+      }
+
+  private def finish(
+    job: Job,
+    result: Either[Throwable, DbioPostOutcome],
+    clients: InjectClients
+  ): IO[Unit] = {
+    def statusOf(state: String, error: Option[String]): IngestStatus =
+      IngestStatus(
+        job.id,
+        job.request.fhirResourceType,
+        job.request.fhirResourceId,
+        state,
+        job.attempt,
+        error)
+    def update(state: String, error: Option[String]): IO[Unit] =
+      statuses.put(job.id, statusOf(state, error))
+    val delay = (settings.retryBaseDelayMillis << (job.attempt - 1)).millis
+    result match {
+      case Right(_) =>
+        markDone(job.id, IngestStatus.Completed) *>
+          update(IngestStatus.Completed, None) *>
+          clients.metrics.ingested(IngestStatus.Completed) *>
+          unfinished.update(_ - 1)
+      case Left(e) if Resilience.unavailable(e) =>
+        val wait = e match {
+          case circuit: CircuitOpenException => circuit.retryAfter max delay
+          case _ => delay
+        }
+        update(IngestStatus.Queued, Option(e.getMessage)) *>
+          clients.metrics.ingested("deferred") *>
+          later(job, wait)
+      case Left(e) if job.attempt < settings.maxAttempts =>
+        update(IngestStatus.Queued, Option(e.getMessage)) *>
+          clients.metrics.ingested("retried") *>
+          later(job.copy(attempt = job.attempt + 1), delay)
+      case Left(e) =>
+        val letter = DeadLetter(job.request, statusOf(IngestStatus.Failed, Option(e.getMessage)))
+        append(Done(job.id, IngestStatus.Failed)) *>
+          dead.update(_.updated(job.id, letter)) *>
+          update(IngestStatus.Failed, Option(e.getMessage)) *>
+          clients.metrics.ingested(IngestStatus.Failed) *>
+          unfinished.update(_ - 1)
+    }
+  }
+
+  /** Queues `job` again after `delay`, on a fiber which is cancelled when the queue stops. */
+  private def later(job: Job, delay: FiniteDuration): IO[Unit] =
+    delayed.supervise(IO.sleep(delay) *> pending.offer(job)).void
+
+  /** Journals a job as finished, rewriting the journal without finished jobs every `compactAfter`
+    * of them.
+    */
+  private def markDone(job: String, state: String): IO[Unit] =
+    append(Done(job, state)) *> file.traverse_ { path =>
+      finishedSinceCompaction
+        .modify(n => if (n + 1 >= settings.compactAfter) 0 -> true else (n + 1) -> false)
+        .ifM(appending.permit.surround(compact(path)).void, IO.unit)
+    }
+
+  /** Queues replayed jobs, waiting for room as workers take jobs off the queue. */
+  private def replay(jobs: List[Job]): IO[Unit] = jobs.traverse_(pending.offer)
+
+  private def append(record: Record): IO[Unit] =
+    file.traverse_ { path =>
+      val line = record.asJson.noSpaces.getBytes(StandardCharsets.UTF_8) ++ Newline
+      appending.permit.surround(IO.blocking {
+        Files.write(path, line, StandardOpenOption.APPEND, StandardOpenOption.DSYNC)
+      }.void)
+    }
+
+}
+
+object IngestQueue {
+
+  /** A queued create and which attempt at it comes next. */
+  private[protocol] final case class Job(id: String, request: DbioPostRequest, attempt: Int)
+
+  /** A create given up as failed, kept to be re-driven. */
+  private[protocol] final case class DeadLetter(request: DbioPostRequest, status: IngestStatus)
+
+  /** State journaled for a create refused because the queue was full. */
+  private val Rejected = "rejected"
+
+  /** One line of the journal. */
+  private[protocol] sealed trait Record
+  private[protocol] final case class Enqueued(job: String, request: DbioPostRequest) extends Record
+  private[protocol] final case class Done(job: String, state: String) extends Record
+
+  private implicit val requestEncoder: Encoder[DbioPostRequest] =
+    Encoder.forProduct6(
+      "subject_email",
+      "creator_email",
+      "creator_eth_address",
+      "fhir_resource_type",
+      "fhir_resource_id",
+      "plaintext")(r =>
+      (
+        r.subjectEmail,
+        r.creatorEmail,
+        r.creatorEthAddress,
+        r.fhirResourceType,
+        r.fhirResourceId,
+        Base64.getEncoder.encodeToString(r.plaintext)))
+
+  private implicit val requestDecoder: Decoder[DbioPostRequest] =
+    Decoder.forProduct6(
+      "subject_email",
+      "creator_email",
+      "creator_eth_address",
+      "fhir_resource_type",
+      "fhir_resource_id",
+      "plaintext")(
+      (
+        subject: String,
+        creator: String,
+        creatorEthAddress: String,
+        resourceType: String,
+        resourceId: String,
+        plaintext: String
+      ) =>
+        DbioPostRequest(
+          subject,
+          creator,
+          creatorEthAddress,
+          resourceType,
+          resourceId,
+          Base64.getDecoder.decode(plaintext)))
+
+  private implicit val recordEncoder: Encoder[Record] = Encoder.instance {
+    case Enqueued(job, request) => Json.obj("job" -> job.asJson, "request" -> request.asJson)
+    case Done(job, state) => Json.obj("job" -> job.asJson, "state" -> state.asJson)
+  }
+
+  private implicit val recordDecoder: Decoder[Record] =
+    Decoder
+      .forProduct2("job", "request")(Enqueued.apply)
+      .widen[Record]
+      .or(Decoder.forProduct2("job", "state")(Done.apply).widen[Record])
+
+  private val Newline = "\n".getBytes(StandardCharsets.UTF_8)
+
+  private val log = LoggerFactory.getLogger(classOf[IngestQueue])
+
+  /** Opens the journal at `path`, or keeps queued creates in memory only when `path` is empty, and
+    * starts `settings.workers` workers creating queued resources through `clients`. The second
+    * element stops the workers and cancels pending retries; creates they had not finished are
+    * picked up on the next start.
+    */
+  def start(
+    path: String,
+    settings: IngestSettings,
+    clients: InjectClients
+  ): IO[(IngestQueue, IO[Unit])] =
+    (for {
+      delayed <- Supervisor[IO]
+      (queue, unfinished) <- Resource.eval(open(path, settings, delayed))
+      _ <- List.fill(settings.workers)(queue.drain(clients).background).sequence_
+      _ <- Resource.eval(delayed.supervise(queue.replay(unfinished)))
+    } yield queue).allocated
+
+  /** Replays the journal, rewriting it with only the creates it does not show as finished and the
+    * dead letters, so that it does not grow across restarts. Returns the queue along with the
+    * unfinished creates, which are queued once workers are running since there may be more of
+    * them than the queue holds. A line cut short by a crash is skipped.
+    */
+  private def open(
+    path: String,
+    settings: IngestSettings,
+    delayed: Supervisor[IO]
+  ): IO[(IngestQueue, List[Job])] =
+    for {
+      file <- if (path.isEmpty) IO.pure(None) else IO(Some(Paths.get(path).toAbsolutePath))
+      journal <- file.fold(IO.pure(Journal(Nil, Nil)))(compact)
+      appending <- Semaphore[IO](1)
+      finishedSinceCompaction <- IO.ref(0)
+      unfinished <- IO.ref(journal.queued.size)
+      pending <- Queue.bounded[IO, Job](settings.capacity)
+      statuses <- Memo[String, IngestStatus](settings.statusCacheSize, None)
+      dead <- IO.ref(journal.failed.map { case Enqueued(id, req) =>
+        id -> DeadLetter(req, queued(id, req).copy(state = IngestStatus.Failed))
+      }.toMap)
+      queue = new IngestQueue(
+        settings,
+        file,
+        appending,
+        finishedSinceCompaction,
+        unfinished,
+        pending,
+        statuses,
+        dead,
+        delayed)
+      _ <- journal.queued.traverse_ { case Enqueued(id, req) => statuses.put(id, queued(id, req)) }
+    } yield queue -> journal.queued.map { case Enqueued(id, req) => Job(id, req, 1) }
+
+  /** Creates still to be uploaded and dead letters, as of the last journal record of each. */
+  private final case class Journal(queued: List[Enqueued], failed: List[Enqueued])
+
+  /** Rewrites the journal, owner-only, with only the creates still to be uploaded and the dead
+    * letters, in the order they were first queued.
+    */
+  private def compact(file: Path): IO[Journal] =
+    IO.blocking {
+      val bytes = if (Files.exists(file)) Files.readAllBytes(file) else Array.empty[Byte]
+      val records = new String(bytes, StandardCharsets.UTF_8)
+        .split('\n')
+        .toList
+        .flatMap(decode[Record](_).toOption)
+      val order = records.collect { case Enqueued(job, _) => job }.distinct
+      val requests = records.collect { case enqueued @ Enqueued(job, _) => job -> enqueued }.toMap
+      val states = records.map {
+        case Enqueued(job, _) => job -> IngestStatus.Queued
+        case Done(job, state) => job -> state
+      }.toMap
+      def in(state: String): List[Enqueued] =
+        order.filter(states.get(_).contains(state)).flatMap(requests.get)
+      val journal = Journal(in(IngestStatus.Queued), in(IngestStatus.Failed))
+      val kept = journal.queued ++ journal.failed.flatMap { case enqueued @ Enqueued(job, _) =>
+        List[Record](enqueued, Done(job, IngestStatus.Failed))
+      }
+      val lines = kept.flatMap { r =>
+        (r: Record).asJson.noSpaces.getBytes(StandardCharsets.UTF_8) ++ Newline
+      }
+      LocalFiles.replaceOwnerOnly(file, lines.toArray)
+      journal
+    }
+
+  private def queued(id: String, req: DbioPostRequest): IngestStatus =
+    IngestStatus(id, req.fhirResourceType, req.fhirResourceId, IngestStatus.Queued, 0, None)
+
+}
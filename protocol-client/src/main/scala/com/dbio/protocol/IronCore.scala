@@ -3,17 +3,22 @@ package com.dbio.protocol
 import cats.data.ReaderT
 import cats.effect.IO
 import cats.implicits._
-import io.circe.Json
-import io.circe.parser.parse
+import com.ironcorelabs.sdk.IronOxideException
+import io.circe.parser.{decode, parse}
+import io.circe.syntax._
+import io.circe.{Decoder, Encoder, Json}
 import ironoxide.v1.IronOxide
 import ironoxide.v1.common.{GroupId, UserId, _}
 import ironoxide.v1.document.{DocumentEncryptOpts, DocumentEncryptResult}
 import ironoxide.v1.group.GroupCreateOpts
 import ironoxide.v1.user.UserCreateOpts
+import org.slf4j.LoggerFactory
 import scodec.bits.ByteVector
 
 import scala.concurrent.duration._
 
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, Paths}
 import java.util.UUID
 
 object IronCore {
@@ -21,6 +26,7 @@ object IronCore {
   private val config = IronOxideConfig(PolicyCachingConfig(666), None)
   private val deviceOpts = DeviceCreateOpts(DeviceName("fhir-proxy"))
   private val timeout = Some(10.seconds)
+  private val log = LoggerFactory.getLogger(getClass)
 
   /** Authenticate to IronCore for the given user and password. If the user does not exist in the
     * system, creates them.
@@ -31,14 +37,101 @@ object IronCore {
     *   the user's password
     */
   def forUser(user: String, pass: String): IO[IronOxide[IO]] =
+    generateDevice(user, pass).flatMap(IronOxide.initialize[IO](_, config))
+
+  /** Authenticate to IronCore like [[forUser]], but with the device context saved at `deviceFile`
+    * when there is one, so that restarts do not register a new device each time. A device is only
+    * generated, and saved readable by its owner only, when the file is missing, unreadable or holds
+    * a device IronCore rejects: the SDK fails to initialize with it while IronCore still verifies
+    * the user's JWT. Any other failure, e.g. IronCore being unreachable, is logged and raised
+    * rather than registering a device in place of one which may still be good. An empty
+    * `deviceFile` always generates a new device.
+    *
+    * @param user
+    *   should be an email address
+    * @param pass
+    *   the user's password
+    * @param deviceFile
+    *   where the device context is kept
+    */
+  def forUser(user: String, pass: String, deviceFile: String): IO[IronOxide[IO]] =
+    if (deviceFile.isEmpty) forUser(user, pass)
+    else
+      IO(Paths.get(deviceFile).toAbsolutePath).flatMap { path =>
+        val generate = for {
+          device <- generateDevice(user, pass)
+          json = device.asJson.noSpaces.getBytes(StandardCharsets.UTF_8)
+          _ <- IO.blocking(LocalFiles.replaceOwnerOnly(path, json))
+          _ <- IO(log.info(s"[IronCore] Saved new device for $user to $path"))
+          sdk <- IronOxide.initialize[IO](device, config)
+        } yield sdk
+        loadDevice(path).flatMap {
+          case Some(device) if device.accountId.id === user =>
+            IronOxide
+              .initialize[IO](device, config)
+              .flatTap(_ => IO(log.info(s"[IronCore] Reusing device for $user from $path")))
+              .handleErrorWith {
+                case e: IronOxideException =>
+                  userFound(user).ifM(
+                    IO(log.warn(s"[IronCore] Saved device rejected: ${e.getMessage}")) *> generate,
+                    unusable(path, e))
+                case e => unusable(path, e)
+              }
+          case _ => generate
+        }
+      }
+
+  /** Whether IronCore answers for `user` by JWT alone, so that a device it refused for them was
+    * refused for itself rather than because IronCore is unreachable or the user is gone.
+    */
+  private def userFound(user: String): IO[Boolean] =
+    JwtSigner
+      .forUser(user)
+      .flatMap(IronOxide.userVerify[IO](_, timeout))
+      .map(_.isDefined)
+      .handleError(_ => false)
+
+  private def unusable[A](path: Path, e: Throwable): IO[A] =
+    IO(log.error(s"[IronCore] Unable to initialize the device saved at $path", e)) *>
+      IO.raiseError(e)
+
+  /** Registers a new device for the user, creating the user first if needed. */
+  private def generateDevice(user: String, pass: String): IO[DeviceContext] =
     for {
       jwt <- JwtSigner.forUser(user)
       verify <- IronOxide.userVerify[IO](jwt, timeout)
       _ <- IO.whenA(verify.isEmpty)(
         IronOxide.userCreate[IO](jwt, pass, UserCreateOpts(), timeout).void)
       device <- IronOxide.generateNewDevice[IO](jwt, pass, deviceOpts, timeout)
-      sdk <- IronOxide.initialize[IO](device.toDeviceContext, config)
-    } yield sdk
+    } yield device.toDeviceContext
+
+  /** Reads the device context saved at `path`, if there is a readable one. */
+  private def loadDevice(path: Path): IO[Option[DeviceContext]] =
+    IO.blocking {
+      if (Files.exists(path)) Some(new String(Files.readAllBytes(path), StandardCharsets.UTF_8))
+      else None
+    }.map(_.flatMap(decode[DeviceContext](_).toOption))
+
+  private implicit val deviceEncoder: Encoder[DeviceContext] =
+    Encoder.forProduct4("account_id", "segment_id", "device_private_key", "signing_private_key")(
+      d =>
+        (
+          d.accountId.id,
+          d.segmentId,
+          d.devicePrivateKey.bytes.toBase64,
+          d.signingPrivateKey.bytes.toBase64))
+
+  private implicit val deviceDecoder: Decoder[DeviceContext] =
+    Decoder
+      .forProduct4("account_id", "segment_id", "device_private_key", "signing_private_key")(
+        (account: String, segment: Long, key: String, signing: String) =>
+          (account, segment, key, signing))
+      .emap { case (account, segment, key, signing) =>
+        (ByteVector.fromBase64(key), ByteVector.fromBase64(signing))
+          .mapN((k, s) =>
+            DeviceContext(UserId(account), segment, PrivateKey(k), DeviceSigningKeyPair(s)))
+          .toRight("Device keys are not base64")
+      }
 
   /** Creates configuration for a "transfer group" between a third party (FHIR proxy) and an
     * existing user in dBio.
@@ -104,6 +197,85 @@ object IronCore {
       } yield out
     }
 
+  /** Creates an empty registry remembering verified transfer groups keyed by (from, to). */
+  def transferGroups(maxSize: Int): IO[Memo[(UserId, UserId), GroupId]] =
+    Memo[(UserId, UserId), GroupId](maxSize, None)
+
+  /** Encrypts the given resource to a "transfer group" including the target user, reusing a group
+    * already verified through `groups`. Concurrent calls for the same pair share one group
+    * creation. IronCore reports a group deleted after its data was claimed only at encryption
+    * time, so if encryption fails and the group can no longer be found it is forgotten and
+    * re-verified once; any other failure is raised as is.
+    *
+    * @param plaintext
+    *   UTF-8 JSON bytes to encrypt, passed to IronCore as is
+    * @param from
+    *   third party
+    * @param to
+    *   dbio user for which the resource is intended
+    * @param groups
+    *   registry of known transfer groups
+    */
+  def transferEncryptBytes(
+    plaintext: Array[Byte],
+    from: UserId,
+    to: UserId,
+    groups: Memo[(UserId, UserId), GroupId]
+  ): ReaderT[IO, IronOxide[IO], DocumentEncryptResult] =
+    ReaderT { iron =>
+      TransferGroups.encrypt(
+        from -> to,
+        groups,
+        createTransferGroup(from, to).run(iron),
+        id => iron.groupGetMetadata(id).attempt.map(_.isLeft)
+      )(id => iron.documentEncrypt(plaintext, transferDocumentOpts(to, id)))
+    }
+
+  /** Document crypto backed by IronCore, encrypting to transfer groups remembered in `groups`. */
+  def crypto(iron: IronOxide[IO], groups: Memo[(UserId, UserId), GroupId]): DocumentCrypto =
+    crypto(iron, groups, ClientMetrics.noop)
+
+  /** Document crypto backed by IronCore, encrypting to transfer groups remembered in `groups` and
+    * timing each SDK call in `metrics`.
+    */
+  def crypto(
+    iron: IronOxide[IO],
+    groups: Memo[(UserId, UserId), GroupId],
+    metrics: ClientMetrics
+  ): DocumentCrypto =
+    new DocumentCrypto {
+      def encrypt(plaintext: Array[Byte], from: UserId, to: UserId): IO[EncryptedDocument] =
+        metrics.ironcore("document_encrypt") {
+          transferEncryptBytes(plaintext, from, to, groups)
+            .run(iron)
+            .map(doc => EncryptedDocument(doc.id.id, doc.encryptedData.toArray))
+        }
+
+      def decrypt(ciphertext: Array[Byte]): IO[Array[Byte]] =
+        metrics.ironcore("document_decrypt") {
+          iron.documentDecrypt(ByteVector(ciphertext)).map(_.decryptedData.toArray)
+        }
+    }
+
+  /** Encrypts the given JSON like [[transferEncryptBytes]].
+    *
+    * @param resource
+    *   JSON to encrypt
+    * @param from
+    *   third party
+    * @param to
+    *   dbio user for which the resource is intended
+    * @param groups
+    *   registry of known transfer groups
+    */
+  def transferEncrypt(
+    resource: Json,
+    from: UserId,
+    to: UserId,
+    groups: Memo[(UserId, UserId), GroupId]
+  ): ReaderT[IO, IronOxide[IO], DocumentEncryptResult] =
+    transferEncryptBytes(resource.noSpaces.getBytes(StandardCharsets.UTF_8), from, to, groups)
+
   /** Encrypts the given resource to a temporary "transfer group" including the target user.
     *
     * @param resource
@@ -128,20 +300,58 @@ object IronCore {
       }
     } yield doc
 
-  /** Decrypts and parses ciphertext data to Json.
+  /** Decrypts ciphertext data to the bytes that were encrypted. A document the proxy compressed
+    * into an envelope comes back as that envelope; only the document crypto built by
+    * [[Compression.crypto]] inflates envelopes.
     *
     * @param ciphertext
     *   valid byte string of encrypted resource
     */
-  def decrypt(ciphertext: String): ReaderT[IO, IronOxide[IO], Json] =
+  def decryptBytes(ciphertext: String): ReaderT[IO, IronOxide[IO], Array[Byte]] =
     ReaderT { iron =>
       for {
         bytes <- IO.fromEither(
           ByteVector.fromBase64Descriptive(ciphertext).leftMap(new IllegalArgumentException(_)))
         doc <- iron.documentDecrypt(bytes)
-        utf <- IO.fromEither(doc.decryptedData.decodeUtf8)
-        json <- IO.fromEither(parse(utf))
-      } yield json
+      } yield doc.decryptedData.toArray
     }
 
+  /** Decrypts and parses ciphertext data to Json.
+    *
+    * @param ciphertext
+    *   valid byte string of encrypted resource
+    */
+  def decrypt(ciphertext: String): ReaderT[IO, IronOxide[IO], Json] =
+    decryptBytes(ciphertext).flatMapF(bytes => IO.fromEither(parseBytes(bytes)))
+
+  private def parseBytes(bytes: Array[Byte]): Either[Throwable, Json] =
+    parse(new String(bytes, StandardCharsets.UTF_8))
+
+}
+
+/** Encryption to transfer groups remembered in a [[Memo]], kept apart from [[IronCore]] so that it
+  * does not need the native library.
+  */
+private[protocol] object TransferGroups {
+
+  /** Runs `encrypt` with the group remembered for `key`, resolving it once across concurrent
+    * callers. If `encrypt` fails and `stale` says the group is gone, the group is forgotten,
+    * resolved again and `encrypt` retried once; otherwise the failure is raised.
+    */
+  def encrypt[A](
+    key: (UserId, UserId),
+    groups: Memo[(UserId, UserId), GroupId],
+    resolve: IO[GroupId],
+    stale: GroupId => IO[Boolean]
+  )(encrypt: GroupId => IO[A]): IO[A] = {
+    val group = groups.getOrLoad(key)(resolve)
+    group.flatMap { id =>
+      encrypt(id).handleErrorWith { e =>
+        stale(id).flatMap { gone =>
+          if (gone) groups.invalidate(key) *> group.flatMap(encrypt) else IO.raiseError(e)
+        }
+      }
+    }
+  }
+
 }
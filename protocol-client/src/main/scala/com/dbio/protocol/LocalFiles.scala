@@ -0,0 +1,26 @@
+package com.dbio.protocol
+
+import java.nio.file._
+import java.nio.file.attribute.PosixFilePermissions
+
+/** Local files holding plaintext resources or keys, kept readable by their owner only. */
+private[protocol] object LocalFiles {
+
+  /** Replaces `file` with `bytes` in one step, through a synced sibling file which is created
+    * readable and writable by its owner only where permissions allow. Creates the directory too.
+    */
+  def replaceOwnerOnly(file: Path, bytes: Array[Byte]): Unit = {
+    Files.createDirectories(file.getParent)
+    val next = file.resolveSibling(s"${file.getFileName}.next")
+    Files.deleteIfExists(next)
+    if (file.getFileSystem.supportedFileAttributeViews.contains("posix"))
+      Files.createFile(
+        next,
+        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+    else Files.createFile(next)
+    Files.write(next, bytes, StandardOpenOption.APPEND, StandardOpenOption.DSYNC)
+    Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    ()
+  }
+
+}
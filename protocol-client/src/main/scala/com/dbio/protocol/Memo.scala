@@ -0,0 +1,241 @@
+package com.dbio.protocol
+
+import cats.effect.{Deferred, IO, Ref}
+import cats.implicits._
+
+import scala.annotation.tailrec
+import scala.collection.immutable.SortedMap
+import scala.concurrent.duration.FiniteDuration
+
+/** Bounded, concurrent memo table with an optional time-to-live. Concurrent misses for the same key
+  * share a single in-flight load, and failed loads are never cached. If the caller running a load
+  * is cancelled, callers waiting on it retry the load themselves. Past the weight budget the least
+  * recently used entries are evicted first; the total weight and the recency order are kept up to
+  * date on every access, so no operation walks the whole table.
+  *
+  * @param maxWeight
+  *   upper bound on the total weight of completed, unpinned entries retained
+  * @param ttl
+  *   how long a completed entry stays valid, or None to keep entries until evicted
+  * @param weigh
+  *   weight of a single value, e.g. 1 to bound entry count or its size in bytes
+  */
+final class Memo[K, V] private (
+  state: Ref[IO, Memo.Table[K, V]],
+  maxWeight: Long,
+  ttl: Option[FiniteDuration],
+  weigh: V => Long
+) {
+  import Memo._
+
+  /** Returns the value cached for `key`, running `load` at most once across concurrent callers. */
+  def getOrLoad(key: K)(load: IO[V]): IO[V] =
+    (IO.monotonic, Deferred[IO, Option[Either[Throwable, V]]]).tupled.flatMap {
+      case (now, signal) =>
+        state.modify { table =>
+          table.entries.get(key) match {
+            case Some(ready @ Ready(_, _, _, _, _)) if isLive(ready, now) =>
+              table.touch(key, ready) -> IO.pure(ready.value)
+            case Some(Loading(inFlight)) =>
+              table -> inFlight.get.flatMap(_.fold(getOrLoad(key)(load))(IO.fromEither(_)))
+            case _ => table.loading(key, signal) -> runLoad(key, load, signal, pin = false)
+          }
+        }.flatten
+    }
+
+  /** Loads `key` and keeps it until explicitly invalidated, regardless of TTL or weight. An
+    * already pinned value is returned without running `load`.
+    */
+  def pin(key: K)(load: IO[V]): IO[V] =
+    Deferred[IO, Option[Either[Throwable, V]]].flatMap { signal =>
+      state.modify { table =>
+        table.entries.get(key) match {
+          case Some(Ready(value, _, _, _, true)) => table -> IO.pure(value)
+          case Some(Loading(inFlight)) =>
+            table -> inFlight.get.flatMap {
+              case Some(result) => IO.fromEither(result).flatMap(v => putPinned(key, v))
+              case None => pin(key)(load)
+            }
+          case _ => table.loading(key, signal) -> runLoad(key, load, signal, pin = true)
+        }
+      }.flatten
+    }
+
+  /** Returns the live value cached for `key`, if any, without loading it. */
+  def get(key: K): IO[Option[V]] =
+    IO.monotonic.flatMap { now =>
+      state.modify { table =>
+        table.entries.get(key) match {
+          case Some(ready @ Ready(_, _, _, _, _)) if isLive(ready, now) =>
+            table.touch(key, ready) -> Some(ready.value)
+          case _ => table -> None
+        }
+      }
+    }
+
+  /** Caches `value` for `key`, replacing any completed entry. */
+  def put(key: K, value: V): IO[Unit] =
+    (IO.monotonic, IO(weigh(value))).tupled.flatMap { case (now, weight) =>
+      state.update(_.ready(key, value, now, weight, pinned = false).evict(maxWeight))
+    }
+
+  /** Drops the entry for `key`; an in-flight load for it completes but is not retained. */
+  def invalidate(key: K): IO[Unit] = state.update(_.remove(key))
+
+  /** Drops every entry, including pinned ones. */
+  def invalidateAll: IO[Unit] = state.set(Table.empty)
+
+  /** Number of entries currently held, including in-flight loads. */
+  def size: IO[Int] = state.get.map(_.entries.size)
+
+  private def putPinned(key: K, value: V): IO[V] =
+    IO.monotonic
+      .flatMap(now => state.update(_.ready(key, value, now, 0L, pinned = true)))
+      .as(value)
+
+  private def isLive(ready: Ready[V], now: FiniteDuration): Boolean =
+    ready.pinned || ttl.forall(t => ready.loadedAt + t > now)
+
+  /** Runs `load` for `key`. Should the caller be cancelled, the entry is released and waiters are
+    * told to retry rather than failed.
+    */
+  private def runLoad(
+    key: K,
+    load: IO[V],
+    signal: Deferred[IO, Option[Either[Throwable, V]]],
+    pin: Boolean
+  ): IO[V] =
+    IO.uncancelable { poll =>
+      poll(load)
+        .onCancel(state.update(release(key, signal)) *> signal.complete(None).void)
+        .attempt
+        .flatTap(result => publish(key, signal, result, pin) *> signal.complete(Some(result)))
+        .rethrow
+    }
+
+  /** Stores a completed load, unless the key was invalidated while it ran. */
+  private def publish(
+    key: K,
+    signal: Deferred[IO, Option[Either[Throwable, V]]],
+    result: Either[Throwable, V],
+    pin: Boolean
+  ): IO[Unit] =
+    (IO.monotonic, IO(result.map(v => if (pin) 0L else weigh(v)))).tupled.flatMap {
+      case (now, weight) =>
+        state.update { table =>
+          table.entries.get(key) match {
+            case Some(Loading(current)) if current eq signal =>
+              (result, weight).tupled.fold(
+                _ => table.remove(key),
+                { case (value, w) => table.ready(key, value, now, w, pin).evict(maxWeight) })
+            case _ => table
+          }
+        }
+    }
+
+  private def release(
+    key: K,
+    signal: Deferred[IO, Option[Either[Throwable, V]]]
+  )(table: Table[K, V]): Table[K, V] =
+    table.entries.get(key) match {
+      case Some(Loading(current)) if current eq signal => table.remove(key)
+      case _ => table
+    }
+
+}
+
+object Memo {
+
+  private[protocol] sealed trait Entry[V]
+
+  /** A completed entry. `stamp` is its place in the recency order, unused when pinned. */
+  private[protocol] final case class Ready[V](
+    value: V,
+    loadedAt: FiniteDuration,
+    stamp: Long,
+    weight: Long,
+    pinned: Boolean)
+      extends Entry[V]
+
+  /** A load in flight; its signal is completed with the result, or with None if cancelled. */
+  private[protocol] final case class Loading[V](
+    signal: Deferred[IO, Option[Either[Throwable, V]]])
+      extends Entry[V]
+
+  /** Entries together with the recency order of the unpinned completed ones, least recently used
+    * first, and their total weight.
+    */
+  private[protocol] final case class Table[K, V](
+    entries: Map[K, Entry[V]],
+    recency: SortedMap[Long, K],
+    weight: Long,
+    clock: Long
+  ) {
+
+    def remove(key: K): Table[K, V] =
+      entries.get(key) match {
+        case Some(Ready(_, _, stamp, w, false)) =>
+          copy(entries = entries - key, recency = recency - stamp, weight = weight - w)
+        case Some(_) => copy(entries = entries - key)
+        case None => this
+      }
+
+    def loading(key: K, signal: Deferred[IO, Option[Either[Throwable, V]]]): Table[K, V] = {
+      val without = remove(key)
+      without.copy(entries = without.entries.updated(key, Loading(signal)))
+    }
+
+    def ready(key: K, value: V, now: FiniteDuration, w: Long, pinned: Boolean): Table[K, V] = {
+      val without = remove(key)
+      if (pinned)
+        without.copy(entries = without.entries.updated(key, Ready(value, now, -1L, 0L, true)))
+      else
+        Table(
+          without.entries.updated(key, Ready(value, now, without.clock, w, false)),
+          without.recency.updated(without.clock, key),
+          without.weight + w,
+          without.clock + 1)
+    }
+
+    /** Moves an unpinned entry to the most recently used end. */
+    def touch(key: K, ready: Ready[V]): Table[K, V] =
+      if (ready.pinned) this
+      else
+        copy(
+          entries = entries.updated(key, ready.copy(stamp = clock)),
+          recency = (recency - ready.stamp).updated(clock, key),
+          clock = clock + 1)
+
+    /** Drops the least recently used unpinned entries until the total weight fits `maxWeight`.
+      * Expired entries are dropped as they are next looked up, or here as they come up.
+      */
+    @tailrec
+    def evict(maxWeight: Long): Table[K, V] =
+      if (weight <= maxWeight) this
+      else
+        recency.headOption match {
+          case Some((_, key)) => remove(key).evict(maxWeight)
+          case None => this
+        }
+
+  }
+
+  private[protocol] object Table {
+    def empty[K, V]: Table[K, V] = Table(Map.empty, SortedMap.empty, 0L, 0L)
+  }
+
+  /** Creates an empty memo table holding at most `maxSize` unpinned entries. */
+  def apply[K, V](maxSize: Int, ttl: Option[FiniteDuration]): IO[Memo[K, V]] =
+    weighted[K, V](maxSize.toLong, ttl)(_ => 1L)
+
+  /** Creates an empty memo table which never expires or evicts entries. */
+  def unbounded[K, V]: IO[Memo[K, V]] =
+    weighted[K, V](Long.MaxValue, None)(_ => 1L)
+
+  /** Creates an empty memo table whose unpinned entries weigh at most `maxWeight` in total. */
+  def weighted[K, V](maxWeight: Long, ttl: Option[FiniteDuration])(
+    weigh: V => Long
+  ): IO[Memo[K, V]] =
+    Ref.of[IO, Table[K, V]](Table.empty).map(new Memo(_, maxWeight, ttl, weigh))
+
+}
@@ -0,0 +1,256 @@
+package com.dbio.protocol
+
+import cats.effect.kernel.Outcome
+import cats.effect.std.Random
+import cats.effect.{IO, Ref, Resource}
+import cats.implicits._
+import fs2.{Chunk, Stream}
+import org.http4s.client.{Client, UnexpectedStatus}
+import org.http4s.{Request, Response}
+
+import scala.concurrent.duration._
+
+import java.util.concurrent.TimeoutException
+
+/** Settings for the resilience layer around calls to dbio-protocol.
+  *
+  * @param lookupTimeoutMillis
+  *   deadline for each attempt of a user or access request lookup
+  * @param readTimeoutMillis
+  *   deadline for each attempt of a resource read
+  * @param writeTimeoutMillis
+  *   deadline for a write, which is never retried or hedged
+  * @param hedgeQuantile
+  *   quantile of recent latencies on the same route after which a duplicate read is sent, or 0 to
+  *   never hedge
+  * @param hedgeMinDelayMillis
+  *   lower bound on the hedge delay, also used until the route has enough latency samples
+  * @param maxRetries
+  *   times a failed read is retried
+  * @param retryBaseDelayMillis
+  *   base of the exponential backoff between retries, which is fully jittered
+  * @param breakerFailureThreshold
+  *   consecutive failed calls after which the circuit opens
+  * @param breakerResetMillis
+  *   how long the circuit stays open before a single call is let through to probe the backend
+  */
+final case class ResilienceSettings(
+  lookupTimeoutMillis: Long,
+  readTimeoutMillis: Long,
+  writeTimeoutMillis: Long,
+  hedgeQuantile: Double,
+  hedgeMinDelayMillis: Long,
+  maxRetries: Int,
+  retryBaseDelayMillis: Long,
+  breakerFailureThreshold: Int,
+  breakerResetMillis: Long
+)
+
+object ResilienceSettings {
+  val Default: ResilienceSettings = ResilienceSettings(
+    lookupTimeoutMillis = 5000,
+    readTimeoutMillis = 15000,
+    writeTimeoutMillis = 30000,
+    hedgeQuantile = 0.95,
+    hedgeMinDelayMillis = 50,
+    maxRetries = 2,
+    retryBaseDelayMillis = 100,
+    breakerFailureThreshold = 5,
+    breakerResetMillis = 10000)
+}
+
+/** Raised instead of calling dbio-protocol while the circuit breaker is open. */
+final class CircuitOpenException(val retryAfter: FiniteDuration)
+    extends RuntimeException(
+      s"dbio-protocol is unavailable, retry in ${retryAfter.toSeconds max 1} seconds")
+
+/** Resilience layer for calls to dbio-protocol. Every call gets a deadline. Reads, which are safe
+  * to repeat, are retried with jittered exponential backoff and hedged: when an attempt takes
+  * longer than most recent reads of the same route, a duplicate is sent and the first success
+  * wins. A circuit breaker fails calls fast with [[CircuitOpenException]] after repeated failures,
+  * until a probe call succeeds again.
+  *
+  * Responses are read fully before they are returned, so that an attempt is only complete, and
+  * a hedge or retry only skipped, once the whole body has arrived.
+  */
+final class Resilience private (
+  settings: ResilienceSettings,
+  breaker: Ref[IO, Resilience.Breaker],
+  latencies: Ref[IO, Map[String, Vector[Long]]],
+  random: Random[IO],
+  metrics: ClientMetrics
+) {
+  import Resilience._
+
+  /** Wraps `client` in this layer. */
+  def apply(client: Client[IO]): Client[IO] =
+    Client { req =>
+      val route = ClientMetrics.route(req.uri.path)
+      val call =
+        if (req.method.isSafe) retrying(hedged(attempt(client, req, route), route), 0)
+        else attempt(client, req, route)
+      Resource.eval(guarded(call))
+    }
+
+  /** Whether calls are refused right now: the circuit is open, or half open with its probe call
+    * still running.
+    */
+  def circuitOpen: IO[Boolean] =
+    (IO.monotonic, breaker.get).mapN {
+      case (now, Open(until)) => now < until
+      case (_, HalfOpen) => true
+      case (_, Closed(_)) => false
+    }
+
+  private def deadline(req: Request[IO], route: String): FiniteDuration =
+    if (!req.method.isSafe) settings.writeTimeoutMillis.millis
+    else if (route.startsWith("resources")) settings.readTimeoutMillis.millis
+    else settings.lookupTimeoutMillis.millis
+
+  /** One request with its body read, failing on a server error or past the route's deadline. Its
+    * latency is sampled whether it succeeds or fails, since leaving out failures and timeouts would
+    * keep exactly the slow attempts out of the hedge quantile. An attempt cancelled because the
+    * other side of a hedge won is not sampled: its elapsed time is cut short, and would pull the
+    * quantile, and so the hedge delay, down until ever more calls were hedged.
+    */
+  private def attempt(client: Client[IO], req: Request[IO], route: String): IO[Response[IO]] = {
+    val call = client.run(req).use { resp =>
+      if (resp.status.code >= 500)
+        IO.raiseError(UnexpectedStatus(resp.status, req.method, req.uri))
+      else resp.body.compile.to(Chunk).map(body => resp.withBodyStream(Stream.chunk(body)))
+    }
+    IO.monotonic.flatMap { start =>
+      call
+        .timeout(deadline(req, route))
+        .onError { case _: TimeoutException => metrics.event("timeout") }
+        .guaranteeCase {
+          case Outcome.Canceled() => IO.unit
+          case _ =>
+            IO.monotonic.flatMap { end =>
+              latencies.update { table =>
+                val samples = table.getOrElse(route, Vector.empty) :+ (end - start).toNanos
+                table.updated(route, samples.takeRight(Window))
+              }
+            }
+        }
+    }
+  }
+
+  private def hedged(attempt: IO[Response[IO]], route: String): IO[Response[IO]] =
+    hedgeDelay(route).flatMap {
+      case Some(delay) =>
+        firstSuccess(attempt, IO.sleep(delay) *> metrics.event("hedge") *> attempt)
+      case None => attempt
+    }
+
+  private def hedgeDelay(route: String): IO[Option[FiniteDuration]] =
+    if (settings.hedgeQuantile <= 0) IO.pure(None)
+    else
+      latencies.get.map { table =>
+        val samples = table.getOrElse(route, Vector.empty).sorted
+        val quantile =
+          if (samples.size < MinSamples) 0L
+          else samples(((samples.size - 1) * settings.hedgeQuantile).toInt)
+        Some(quantile.nanos max settings.hedgeMinDelayMillis.millis)
+      }
+
+  private def retrying[A](io: IO[A], retries: Int): IO[A] =
+    io.handleErrorWith {
+      case e: CircuitOpenException => IO.raiseError(e)
+      case e if retries >= settings.maxRetries => IO.raiseError(e)
+      case _ =>
+        for {
+          jitter <- random.nextDouble
+          _ <- IO.sleep((settings.retryBaseDelayMillis * (1L << retries) * jitter).toLong.millis)
+          _ <- metrics.event("retry")
+          out <- retrying(io, retries + 1)
+        } yield out
+    }
+
+  /** Runs `io` if the circuit admits it, and updates the circuit with how it completed. */
+  private def guarded[A](io: IO[A]): IO[A] =
+    IO.monotonic.flatMap { now =>
+      breaker.modify(admit(now)).flatMap {
+        case Some(retryAfter) =>
+          metrics.event("short_circuit") *> IO.raiseError(new CircuitOpenException(retryAfter))
+        case None =>
+          io.guaranteeCase { outcome =>
+            IO.monotonic.flatMap(end => breaker.update(after(outcome, end)))
+          }
+      }
+    }
+
+  /** Moves the circuit for a call at `now`, returning how long to wait if it is refused. */
+  private def admit(now: FiniteDuration)(state: Breaker): (Breaker, Option[FiniteDuration]) =
+    state match {
+      case Open(until) if now >= until => HalfOpen -> None
+      case Open(until) => state -> Some(until - now)
+      case HalfOpen => state -> Some(settings.breakerResetMillis.millis)
+      case Closed(_) => state -> None
+    }
+
+  private def after[A](outcome: Outcome[IO, Throwable, A], end: FiniteDuration)(
+    state: Breaker
+  ): Breaker =
+    (outcome, state) match {
+      case (Outcome.Succeeded(_), _) => Closed(0)
+      case (Outcome.Canceled(), HalfOpen) => Open(end)
+      case (Outcome.Canceled(), _) => state
+      case (Outcome.Errored(_), Closed(n)) if n + 1 < settings.breakerFailureThreshold =>
+        Closed(n + 1)
+      case (Outcome.Errored(_), _) => Open(end + settings.breakerResetMillis.millis)
+    }
+
+}
+
+object Resilience {
+
+  /** Latency samples kept per route for the hedge delay. */
+  private val Window = 256
+
+  /** Samples needed before the hedge delay follows the route's latency. */
+  private val MinSamples = 20
+
+  private[protocol] sealed trait Breaker
+  private[protocol] final case class Closed(failures: Int) extends Breaker
+  private[protocol] final case class Open(until: FiniteDuration) extends Breaker
+  private[protocol] case object HalfOpen extends Breaker
+
+  /** Creates a layer with a closed circuit, reporting hedges, retries, timeouts and refused calls
+    * to `metrics`.
+    */
+  def create(settings: ResilienceSettings, metrics: ClientMetrics): IO[Resilience] =
+    for {
+      breaker <- Ref.of[IO, Breaker](Closed(0))
+      latencies <- Ref.of[IO, Map[String, Vector[Long]]](Map.empty)
+      random <- Random.scalaUtilRandom[IO]
+    } yield new Resilience(settings, breaker, latencies, random, metrics)
+
+  /** Whether `e` means dbio-protocol itself is failing, as opposed to refusing this one request:
+    * the circuit is open, or the call timed out or got a server error even after any retries.
+    */
+  private[protocol] def unavailable(e: Throwable): Boolean =
+    e match {
+      case _: CircuitOpenException | _: TimeoutException => true
+      case UnexpectedStatus(status, _, _) => status.code >= 500
+      case _ => false
+    }
+
+  /** Runs both effects concurrently and returns the first success, cancelling the other. When both
+    * fail, the error of `secondary` is raised.
+    */
+  private[protocol] def firstSuccess[A](primary: IO[A], secondary: IO[A]): IO[A] =
+    IO.racePair(primary.attempt, secondary.attempt).flatMap {
+      case Left((done, other)) =>
+        done.embedNever.flatMap {
+          case Right(a) => other.cancel.as(a)
+          case Left(_) => other.joinWithNever.rethrow
+        }
+      case Right((other, done)) =>
+        done.embedNever.flatMap {
+          case Right(a) => other.cancel.as(a)
+          case Left(e) => other.joinWithNever.flatMap(_.leftMap(_ => e).liftTo[IO])
+        }
+    }
+
+}
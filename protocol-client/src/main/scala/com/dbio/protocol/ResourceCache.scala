@@ -0,0 +1,107 @@
+package com.dbio.protocol
+
+import cats.effect.IO
+
+import scala.concurrent.duration._
+
+import java.security.SecureRandom
+import java.util.Arrays
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.{Cipher, KeyGenerator, SecretKey}
+
+/** Identifies a FHIR resource of a subject. Resource ids are content hashes, so the resource behind
+  * a key never changes.
+  */
+final case class ResourceKey(
+  subjectEmail: String,
+  resourceType: String,
+  resourceId: String
+)
+
+/** Decrypted plaintext of a resource along with the dBio metadata it was read with. The metadata
+  * does not retain the ciphertext.
+  */
+final case class CachedResource(
+  resource: DbioResource,
+  plaintext: Array[Byte]
+)
+
+/** LRU cache of decrypted resources bounded by plaintext bytes, so repeat reads skip both the
+  * protocol round trip and IronCore decryption. Optionally keeps plaintext sealed with a key which
+  * only lives in this process's memory.
+  */
+final class ResourceCache private (
+  memo: Memo[ResourceKey, CachedResource],
+  sealer: Option[ResourceCache.Sealer]
+) {
+
+  /** Returns the decrypted resource for `key`, running `load` on a miss. */
+  def getOrLoad(key: ResourceKey)(load: IO[CachedResource]): IO[CachedResource] =
+    sealer.fold(memo.getOrLoad(key)(load)) { s =>
+      memo.getOrLoad(key)(load.flatMap(s.seal)).flatMap(s.unseal)
+    }
+
+  /** Forgets the cached resource for `key`. */
+  def invalidate(key: ResourceKey): IO[Unit] = memo.invalidate(key)
+
+  /** Forgets all cached resources. */
+  def invalidateAll: IO[Unit] = memo.invalidateAll
+
+}
+
+object ResourceCache {
+
+  /** Fixed per-entry overhead, in bytes, counted toward the budget besides the plaintext. */
+  private val EntryOverhead = 512L
+
+  /** Creates a cache holding at most `maxBytes` of plaintext.
+    *
+    * @param ttlSeconds
+    *   how long a resource may be served from the cache, or 0 to keep it until evicted
+    * @param encrypted
+    *   whether plaintext is held sealed with AES-GCM under an in-memory key
+    */
+  def create(maxBytes: Long, ttlSeconds: Long, encrypted: Boolean): IO[ResourceCache] =
+    for {
+      memo <- Memo.weighted[ResourceKey, CachedResource](
+        maxBytes,
+        Some(ttlSeconds.seconds).filter(_ > Duration.Zero))(r => r.plaintext.length + EntryOverhead)
+      sealer <- if (encrypted) Sealer.create.map(Some(_)) else IO.pure(None)
+    } yield new ResourceCache(memo, sealer)
+
+  /** Seals and unseals plaintext with AES-GCM under a random key; each entry gets its own IV. */
+  private[protocol] final class Sealer(key: SecretKey, random: SecureRandom) {
+    private val IvBytes = 12
+    private val TagBits = 128
+
+    def seal(r: CachedResource): IO[CachedResource] =
+      sealBytes(r.plaintext).map(sealed => r.copy(plaintext = sealed))
+
+    def unseal(r: CachedResource): IO[CachedResource] =
+      unsealBytes(r.plaintext).map(plaintext => r.copy(plaintext = plaintext))
+
+    def sealBytes(plaintext: Array[Byte]): IO[Array[Byte]] = IO {
+      val iv = new Array[Byte](IvBytes)
+      random.nextBytes(iv)
+      val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TagBits, iv))
+      iv ++ cipher.doFinal(plaintext)
+    }
+
+    def unsealBytes(sealed: Array[Byte]): IO[Array[Byte]] = IO {
+      val iv = Arrays.copyOfRange(sealed, 0, IvBytes)
+      val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TagBits, iv))
+      cipher.doFinal(sealed, IvBytes, sealed.length - IvBytes)
+    }
+  }
+
+  private[protocol] object Sealer {
+    def create: IO[Sealer] = IO {
+      val generator = KeyGenerator.getInstance("AES")
+      generator.init(256)
+      new Sealer(generator.generateKey(), new SecureRandom())
+    }
+  }
+
+}
@@ -0,0 +1,155 @@
+package com.dbio.protocol
+
+import cats.effect.std.Semaphore
+import cats.effect.{IO, Ref}
+import cats.implicits._
+import io.circe.parser.decode
+import io.circe.syntax._
+import io.circe.{Decoder, Encoder}
+import org.slf4j.LoggerFactory
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, Paths, StandardOpenOption}
+
+/** Outcome of creating a resource: the protocol's response and whether this call uploaded it, as
+  * opposed to finding it already written.
+  */
+final case class DbioPostOutcome(
+  response: DbioPostResponse,
+  created: Boolean
+)
+
+/** Index of resources this proxy has already written, keyed by subject, type and content-derived
+  * id. Since the id is a hash of the resource, a key that is present means the exact same resource
+  * was uploaded before. At most `maxSize` writes are remembered, the least recently used forgotten
+  * first; a forgotten resource posted again is uploaded again, which is harmless.
+  *
+  * Each write is appended and synced to a JSON-lines file, if any, which is replayed on startup.
+  * Once it holds twice `maxSize` lines the file is rewritten with only the latest `maxSize`
+  * writes, so it stays bounded while the proxy runs. It is readable by its owner only.
+  */
+final class WriteIndex private (
+  memo: Memo[ResourceKey, DbioPostResponse],
+  file: Option[Path],
+  appending: Semaphore[IO],
+  lines: Ref[IO, Int],
+  maxSize: Int
+) {
+  import WriteIndex._
+
+  /** Returns the recorded response for `key`, or runs `create` and records its response. Concurrent
+    * calls for the same key share one `create`, and only the caller which ran it sees `created`.
+    * Recorded responses do not keep the ciphertext.
+    *
+    * Once `create` has succeeded the resource is uploaded, so a failure to append it to the file is
+    * logged rather than failing the create: the response is still remembered in memory, and a retry
+    * does not upload the resource again. It is only forgotten on a restart.
+    */
+  def getOrCreate(key: ResourceKey)(create: IO[DbioPostResponse]): IO[DbioPostOutcome] =
+    for {
+      created <- IO.ref(false)
+      response <- memo.getOrLoad(key)(
+        create
+          .map(_.copy(ciphertext = ""))
+          .flatTap(r => remember(Record(key, r))) <* created.set(true))
+      fresh <- created.get
+    } yield DbioPostOutcome(response, fresh)
+
+  /** Returns the recorded response for `key`, if any. */
+  def get(key: ResourceKey): IO[Option[DbioPostResponse]] = memo.get(key)
+
+  private def remember(record: Record): IO[Unit] =
+    append(record).attempt.flatMap(
+      _.swap.traverse_(e =>
+        IO(log.error(s"[WriteIndex] Unable to record write of ${record.key}: ${e.getMessage}", e))))
+
+  private def append(record: Record): IO[Unit] =
+    file.traverse_ { path =>
+      val line = record.asJson.noSpaces.getBytes(StandardCharsets.UTF_8) ++ Newline
+      appending.permit.surround(
+        IO.blocking {
+          Files.write(path, line, StandardOpenOption.APPEND, StandardOpenOption.DSYNC)
+        } *> lines.updateAndGet(_ + 1).flatMap { n =>
+          if (n < 2 * maxSize) IO.unit
+          else compact(path, maxSize).flatMap(kept => lines.set(kept.size))
+        })
+    }
+
+}
+
+object WriteIndex {
+
+  /** One line of the index file. */
+  private final case class Record(key: ResourceKey, response: DbioPostResponse)
+
+  private implicit val keyEncoder: Encoder[ResourceKey] =
+    Encoder.forProduct3("subject_email", "fhir_resource_type", "fhir_resource_id")(k =>
+      (k.subjectEmail, k.resourceType, k.resourceId))
+
+  private implicit val keyDecoder: Decoder[ResourceKey] =
+    Decoder.forProduct3("subject_email", "fhir_resource_type", "fhir_resource_id")(
+      ResourceKey.apply)
+
+  private implicit val recordEncoder: Encoder[Record] =
+    Encoder.forProduct2("key", "response")(r => (r.key, r.response))
+
+  private implicit val recordDecoder: Decoder[Record] =
+    Decoder.forProduct2("key", "response")(Record.apply)
+
+  private val Newline = "\n".getBytes(StandardCharsets.UTF_8)
+
+  private val log = LoggerFactory.getLogger(classOf[WriteIndex])
+
+  /** Writes remembered when no bound is given. */
+  val DefaultMaxSize = 100000
+
+  /** Creates an index which is not persisted and starts empty. */
+  def inMemory: IO[WriteIndex] = inMemory(DefaultMaxSize)
+
+  /** Creates an index remembering at most `maxSize` writes, which is not persisted. */
+  def inMemory(maxSize: Int): IO[WriteIndex] =
+    (Memo[ResourceKey, DbioPostResponse](maxSize, None), Semaphore[IO](1), IO.ref(0))
+      .mapN(new WriteIndex(_, None, _, _, maxSize))
+
+  /** Opens the index persisted at `path` remembering the default number of writes. */
+  def open(path: String): IO[WriteIndex] = open(path, DefaultMaxSize)
+
+  /** Opens the index persisted at `path`, creating it and its directory if needed, or an in-memory
+    * index when `path` is empty, remembering at most `maxSize` writes. The file is compacted to
+    * those as it is opened; lines which do not decode, such as one cut short by a crash, are
+    * dropped.
+    */
+  def open(path: String, maxSize: Int): IO[WriteIndex] =
+    if (path.isEmpty) inMemory(maxSize)
+    else
+      for {
+        file <- IO(Paths.get(path).toAbsolutePath)
+        records <- compact(file, maxSize)
+        memo <- Memo[ResourceKey, DbioPostResponse](maxSize, None)
+        _ <- records.traverse_(r => memo.put(r.key, r.response))
+        appending <- Semaphore[IO](1)
+        lines <- IO.ref(records.size)
+      } yield new WriteIndex(memo, Some(file), appending, lines, maxSize)
+
+  /** Rewrites the file, owner-only, with the latest record of each of the `maxSize` most recently
+    * written keys, and returns those records oldest first.
+    */
+  private def compact(file: Path, maxSize: Int): IO[List[Record]] =
+    IO.blocking {
+      val bytes = if (Files.exists(file)) Files.readAllBytes(file) else Array.empty[Byte]
+      val records = new String(bytes, StandardCharsets.UTF_8)
+        .split('\n')
+        .toList
+        .flatMap(decode[Record](_).toOption)
+      val latest = records.reverse
+        .foldLeft((Set.empty[ResourceKey], List.empty[Record])) { case ((seen, kept), r) =>
+          if (seen.contains(r.key)) (seen, kept) else (seen + r.key, r :: kept)
+        }
+        ._2
+        .takeRight(maxSize)
+      val lines = latest.flatMap(_.asJson.noSpaces.getBytes(StandardCharsets.UTF_8) ++ Newline)
+      LocalFiles.replaceOwnerOnly(file, lines.toArray)
+      latest
+    }
+
+}
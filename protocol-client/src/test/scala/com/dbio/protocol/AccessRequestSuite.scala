@@ -0,0 +1,39 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import com.dbio.protocol.stub.{ProtocolStub, StubFixture}
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+class AccessRequestSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  import DbioAccessControl._
+
+  private val requestee = ProtocolStub.ethAddress(StubFixture.Subject)
+  private val ar = AccessRequest(StubFixture.ProviderEthAddress, requestee, "")
+
+  test("Searches without a type return requests of both types") {
+    val prog = for {
+      stub <- ProtocolStub.create
+      cache <- AccessRequestCache.create(16, 60)
+      _ <- cache.post(WriteType, ar, stub.client)
+      _ <- cache.post(ReadType, ar, stub.client)
+      out <- cache.search(requestee, Types, stub.client)
+    } yield out.flatMap(_.requestType)
+    prog.asserting(_ shouldBe List(ReadType, WriteType))
+  }
+
+  test("Cached searches are refreshed when a request is created") {
+    val prog = for {
+      stub <- ProtocolStub.create
+      cache <- AccessRequestCache.create(16, 60)
+      _ <- cache.post(ReadType, ar, stub.client)
+      first <- cache.search(requestee, Types, stub.client)
+      _ <- postReadRequest(ar, stub.client)
+      cached <- cache.search(requestee, Types, stub.client)
+      _ <- cache.post(ReadType, ar, stub.client)
+      refreshed <- cache.search(requestee, Types, stub.client)
+      one <- cache.get(ReadType, first.head.id, ar.requestorEthAddress, stub.client)
+    } yield (first.size, cached.size, refreshed.size, one.id)
+    prog.asserting(_ shouldBe ((1, 1, 3, 1)))
+  }
+}
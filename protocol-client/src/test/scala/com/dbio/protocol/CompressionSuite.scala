@@ -0,0 +1,75 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import com.dbio.protocol.stub.{FakeCrypto, StubFixture}
+import ironoxide.v1.common.UserId
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+class CompressionSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  private val study =
+    ("""{"resourceType":"ImagingStudy","series":[""" +
+      List.fill(200)("""{"modality":{"code":"CT"}}""").mkString(",") + "]}").getBytes("UTF-8")
+
+  private val on = CompressionSettings.Default.copy(envelope = true)
+
+  test("Enveloped plaintexts are smaller and round trip") {
+    val prog = for {
+      enveloped <- Compression.compress(study, 1024)
+      out <- Compression.decompress(enveloped, study.length.toLong)
+    } yield (enveloped.length < study.length / 4, out.sameElements(study))
+    prog.asserting(_ shouldBe ((true, true)))
+  }
+
+  test("Plaintexts written before envelopes read back unchanged") {
+    val small = """{"resourceType":"Patient"}""".getBytes("UTF-8")
+    val prog = for {
+      kept <- Compression.compress(small, 1024)
+      legacy <- Compression.decompress(study, 0)
+    } yield (kept.sameElements(small), legacy.sameElements(study))
+    prog.asserting(_ shouldBe ((true, true)))
+  }
+
+  test("Envelopes of an unknown version are rejected") {
+    val prog = Compression.compress(study, 0).flatMap { enveloped =>
+      Compression.decompress(enveloped.updated(3, 9.toByte), study.length.toLong)
+    }
+    prog.assertThrows[IllegalArgumentException]
+  }
+
+  test("Envelopes inflating past the maximum size are rejected") {
+    val prog = Compression.compress(study, 0).flatMap { enveloped =>
+      Compression.decompress(enveloped, study.length.toLong - 1)
+    }
+    prog.assertThrows[IllegalArgumentException]
+  }
+
+  test("Compressing crypto reads documents written with and without envelopes") {
+    val fake = new FakeCrypto
+    val crypto = Compression.crypto(fake, on, ClientMetrics.noop)
+    val from = UserId(StubFixture.Provider)
+    val to = UserId(StubFixture.Subject)
+    val prog = for {
+      compressed <- crypto.encrypt(study, from, to)
+      plain <- fake.encrypt(study, from, to)
+      a <- crypto.decrypt(compressed.ciphertext)
+      b <- crypto.decrypt(plain.ciphertext)
+    } yield (
+      compressed.ciphertext.length < study.length,
+      a.sameElements(study),
+      b.sameElements(study))
+    prog.asserting(_ shouldBe ((true, true, true)))
+  }
+
+  test("Resources round trip through the stub when compressed") {
+    val post = StubFixture.post("ImagingStudy", "id", study)
+    val get = StubFixture.get("ImagingStudy", "id")
+    val prog = for {
+      plain <- StubFixture.clients
+      clients = plain.copy(crypto = Compression.crypto(plain.crypto, on, ClientMetrics.noop))
+      _ <- DbioResource.create(post).run(clients)
+      out <- DbioResource.get(get).run(clients)
+    } yield out.plaintext.sameElements(study)
+    prog.asserting(_ shouldBe true)
+  }
+}
@@ -0,0 +1,147 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{Deferred, IO, Ref}
+import cats.implicits._
+import com.dbio.protocol.stub.{FakeCrypto, StubFixture}
+import ironoxide.v1.common.UserId
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import scala.concurrent.duration._
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+class IngestQueueSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  private val post =
+    StubFixture.post("Patient", "id", """{"resourceType":"Patient"}""".getBytes("UTF-8"))
+
+  private val get = StubFixture.get("Patient", "id")
+
+  private def finished(queue: IngestQueue, job: String): IO[IngestStatus] =
+    queue.status(job).flatMap {
+      case Some(status) if status.state =!= IngestStatus.Queued => IO.pure(status)
+      case _ => IO.sleep(10.millis) *> finished(queue, job)
+    }
+
+  /** Encrypts like [[FakeCrypto]], running `before` first. */
+  private def crypto(before: IO[Unit]): DocumentCrypto =
+    new DocumentCrypto {
+      private val underlying = new FakeCrypto
+      def encrypt(plaintext: Array[Byte], from: UserId, to: UserId): IO[EncryptedDocument] =
+        before *> underlying.encrypt(plaintext, from, to)
+      def decrypt(ciphertext: Array[Byte]): IO[Array[Byte]] = underlying.decrypt(ciphertext)
+    }
+
+  private val broken = IO.raiseError[Unit](new IllegalStateException("broken"))
+
+  test("Queued creates are uploaded in the background") {
+    val prog = for {
+      clients <- StubFixture.clients
+      (queue, stop) <- IngestQueue.start("", IngestSettings.Default, clients)
+      accepted <- queue.submit(post)
+      done <- finished(queue, accepted.job).timeout(5.seconds).guarantee(stop)
+      out <- DbioResource.get(get).run(clients)
+    } yield (accepted.state, done.state, new String(out.plaintext, "UTF-8"))
+    prog.asserting(
+      _ shouldBe ((IngestStatus.Queued, IngestStatus.Completed, """{"resourceType":"Patient"}""")))
+  }
+
+  test("Creates left in the journal are uploaded after a restart") {
+    val prog = for {
+      dir <- IO(Files.createTempDirectory("ingest"))
+      journal = dir.resolve("journal.jsonl").toString
+      clients <- StubFixture.clients
+      idle = IngestSettings.Default.copy(workers = 0)
+      (stopped, stop) <- IngestQueue.start(journal, idle, clients)
+      accepted <- stopped.submit(post)
+      _ <- stop
+      (queue, restop) <- IngestQueue.start(journal, IngestSettings.Default, clients)
+      done <- finished(queue, accepted.job).timeout(5.seconds).guarantee(restop)
+    } yield done.state
+    prog.asserting(_ shouldBe IngestStatus.Completed)
+  }
+
+  test("Finished creates are compacted out of the journal while running") {
+    val compacting = IngestSettings.Default.copy(compactAfter = 2)
+    val prog = for {
+      dir <- IO(Files.createTempDirectory("ingest"))
+      journal = dir.resolve("journal.jsonl")
+      clients <- StubFixture.clients
+      (queue, stop) <- IngestQueue.start(journal.toString, compacting, clients)
+      accepted <- List("a", "b").traverse(id => queue.submit(post.copy(fhirResourceId = id)))
+      _ <- accepted.traverse_(a => finished(queue, a.job)).timeout(5.seconds).guarantee(stop)
+      left <- IO.blocking(new String(Files.readAllBytes(journal), StandardCharsets.UTF_8))
+    } yield left
+    prog.asserting(_ shouldBe "")
+  }
+
+  test("Failed creates are kept as dead letters and can be re-driven") {
+    val once = IngestSettings.Default.copy(maxAttempts = 1)
+    val prog = for {
+      failing <- Ref.of[IO, Boolean](true)
+      clients <- StubFixture.clients(crypto(failing.get.ifM(broken, IO.unit)))
+      (queue, stop) <- IngestQueue.start("", once, clients)
+      accepted <- queue.submit(post)
+      failed <- finished(queue, accepted.job).timeout(5.seconds)
+      letters <- queue.deadLetters
+      _ <- failing.set(false)
+      _ <- queue.redrive(accepted.job)
+      done <- finished(queue, accepted.job).timeout(5.seconds).guarantee(stop)
+    } yield (failed.state, letters.map(_.job) === List(accepted.job), done.state)
+    prog.asserting(_ shouldBe ((IngestStatus.Failed, true, IngestStatus.Completed)))
+  }
+
+  test("Creates past the queue's capacity are refused") {
+    val full = IngestSettings.Default.copy(workers = 0, capacity = 1)
+    val prog = for {
+      clients <- StubFixture.clients
+      (queue, stop) <- IngestQueue.start("", full, clients)
+      first <- queue.submit(post).attempt
+      second <- queue.submit(post).attempt.guarantee(stop)
+    } yield (first.isRight, second.left.toOption.map(_.getClass))
+    prog.asserting(_ shouldBe ((true, Some(classOf[IngestQueueFullException]))))
+  }
+
+  test("Creates waiting to be retried count toward the queue's capacity") {
+    val slow = IngestSettings.Default.copy(capacity = 1, retryBaseDelayMillis = 60000)
+    def retrying(queue: IngestQueue, job: String): IO[Unit] =
+      queue.status(job).flatMap {
+        case Some(status) if status.error.isDefined => IO.unit
+        case _ => IO.sleep(10.millis) *> retrying(queue, job)
+      }
+    val prog = for {
+      clients <- StubFixture.clients(crypto(broken))
+      (queue, stop) <- IngestQueue.start("", slow, clients)
+      first <- queue.submit(post)
+      _ <- retrying(queue, first.job).timeout(5.seconds)
+      second <- queue.submit(post).attempt.guarantee(stop)
+    } yield second.left.toOption.map(_.getClass)
+    prog.asserting(_ shouldBe Some(classOf[IngestQueueFullException]))
+  }
+
+  test("Workers keep going when the journal cannot be written") {
+    val quick = IngestSettings.Default.copy(workers = 1, retryBaseDelayMillis = 10)
+    val prog = for {
+      dir <- IO(Files.createTempDirectory("ingest"))
+      journal = dir.resolve("journal.jsonl")
+      gate <- Deferred[IO, Unit]
+      clients <- StubFixture.clients(crypto(gate.get))
+      (queue, stop) <- IngestQueue.start(journal.toString, quick, clients)
+      first <- queue.submit(post)
+      _ <- IO.blocking(Files.delete(journal))
+      _ <- gate.complete(())
+      _ <- IO.sleep(100.millis)
+      stalled <- queue.status(first.job)
+      _ <- IO.blocking(Files.createFile(journal))
+      second <- queue.submit(post.copy(fhirResourceId = "other"))
+      done <- List(first, second)
+        .traverse(a => finished(queue, a.job))
+        .timeout(5.seconds)
+        .guarantee(stop)
+    } yield (stalled.map(_.state), done.map(_.state))
+    val completed = List(IngestStatus.Completed, IngestStatus.Completed)
+    prog.asserting(_ shouldBe ((Some(IngestStatus.Queued), completed)))
+  }
+}
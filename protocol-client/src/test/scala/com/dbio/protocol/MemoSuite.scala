@@ -0,0 +1,87 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{Deferred, IO, Ref}
+import cats.implicits._
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import scala.concurrent.duration._
+
+class MemoSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  test("Concurrent misses share one load") {
+    val prog = for {
+      memo <- Memo[String, Int](16, Some(1.minute))
+      loads <- Ref.of[IO, Int](0)
+      load = loads.update(_ + 1) *> IO.sleep(50.millis).as(42)
+      out <- List.fill(10)(memo.getOrLoad("k")(load)).parSequence
+      n <- loads.get
+    } yield out -> n
+    prog.asserting { case (out, n) =>
+      out.distinct shouldBe List(42)
+      n shouldBe 1
+    }
+  }
+
+  test("Waiters retry the load when the caller running it is cancelled") {
+    val prog = for {
+      memo <- Memo[String, Int](16, None)
+      started <- Deferred[IO, Unit]
+      first <- memo.getOrLoad("k")(started.complete(()) *> IO.never[Int]).start
+      _ <- started.get
+      waiter <- memo.getOrLoad("k")(IO.pure(7)).start
+      _ <- IO.sleep(20.millis)
+      _ <- first.cancel
+      out <- waiter.joinWithNever
+    } yield out
+    prog.asserting(_ shouldBe 7)
+  }
+
+  test("Failed loads are not cached") {
+    val prog = for {
+      memo <- Memo[String, Int](16, None)
+      _ <- memo.getOrLoad("k")(IO.raiseError(new RuntimeException("boom"))).attempt
+      out <- memo.getOrLoad("k")(IO.pure(1))
+    } yield out
+    prog.asserting(_ shouldBe 1)
+  }
+
+  test("Entries expire after the TTL and are evicted past the size bound") {
+    val prog = for {
+      memo <- Memo[String, Int](2, Some(20.millis))
+      _ <- memo.getOrLoad("a")(IO.pure(1))
+      _ <- IO.sleep(40.millis)
+      a <- memo.getOrLoad("a")(IO.pure(2))
+      _ <- List("b", "c", "d").traverse(k => memo.getOrLoad(k)(IO.pure(0)))
+      size <- memo.size
+    } yield a -> size
+    prog.asserting { case (a, size) =>
+      a shouldBe 2
+      size shouldBe 2
+    }
+  }
+
+  test("Pinned entries survive TTL and invalidation removes them") {
+    val prog = for {
+      memo <- Memo[String, Int](1, Some(1.milli))
+      _ <- memo.pin("me")(IO.pure(1))
+      _ <- IO.sleep(10.millis)
+      pinned <- memo.getOrLoad("me")(IO.pure(2))
+      _ <- memo.invalidate("me")
+      reloaded <- memo.getOrLoad("me")(IO.pure(3))
+    } yield pinned -> reloaded
+    prog.asserting(_ shouldBe (1 -> 3))
+  }
+
+  test("Weighted entries are evicted least recently used first") {
+    val prog = for {
+      memo <- Memo.weighted[String, Int](10, None)(_.toLong)
+      _ <- memo.getOrLoad("a")(IO.pure(4))
+      _ <- memo.getOrLoad("b")(IO.pure(4))
+      _ <- memo.getOrLoad("a")(IO.pure(0))
+      _ <- memo.getOrLoad("c")(IO.pure(4))
+      a <- memo.getOrLoad("a")(IO.pure(-1))
+      b <- memo.getOrLoad("b")(IO.pure(-1))
+    } yield a -> b
+    prog.asserting(_ shouldBe (4 -> -1))
+  }}
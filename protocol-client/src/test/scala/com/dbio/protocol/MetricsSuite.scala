@@ -0,0 +1,32 @@
+package com.dbio.protocol
+
+import cats.effect.IO
+import cats.effect.testing.scalatest.AsyncIOSpec
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.http4s.implicits._
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+class MetricsSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  test("Protocol routes leave out user, resource and request ids") {
+    val routes = List(
+      uri"http://dbio-protocol:8080/dbio/users/email/jane@example.com",
+      uri"http://dbio-protocol:8080/dbio/resources/claimed/0xabc/Patient/id/0xdef",
+      uri"http://dbio-protocol:8080/dbio/read_requests/id/7",
+      uri"http://dbio-protocol:8080/dbio/write_requests/0xabc"
+    ).map(uri => ClientMetrics.route(uri.path))
+    routes shouldBe List("users", "resources/claimed", "read_requests/id", "write_requests")
+  }
+
+  test("Stages are timed by outcome") {
+    val registry = new SimpleMeterRegistry()
+    val metrics = new ClientMetrics(registry)
+    val prog = for {
+      _ <- metrics.stage("get", "decrypt")(IO.unit)
+      _ <- metrics.stage("get", "decrypt")(IO.raiseError(new RuntimeException("boom"))).attempt
+    } yield List("success", "error").map { outcome =>
+      registry.get("dbio.client.stage").tag("stage", "decrypt").tag("outcome", outcome).timer.count
+    }
+    prog.asserting(_ shouldBe List(1L, 1L))
+  }
+}
@@ -0,0 +1,90 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{IO, Ref}
+import cats.implicits._
+import org.http4s.client.Client
+import org.http4s.dsl.io._
+import org.http4s.implicits._
+import org.http4s.{HttpApp, Request, Response, Status}
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import scala.concurrent.duration._
+
+class ResilienceSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  private val settings = ResilienceSettings.Default.copy(
+    hedgeQuantile = 0,
+    retryBaseDelayMillis = 1,
+    breakerResetMillis = 60000)
+
+  private val read = Request[IO](GET, uri"http://dbio-protocol:8080/dbio/users/email/jane")
+  private val write = Request[IO](POST, uri"http://dbio-protocol:8080/dbio/resources/unclaimed")
+
+  /** Client answering the n-th call, counted from 0, with `respond(n)`. */
+  private def counting(respond: Int => IO[Status]): IO[(Client[IO], Ref[IO, Int])] =
+    Ref.of[IO, Int](0).map { calls =>
+      val app = HttpApp[IO] { _ =>
+        calls.getAndUpdate(_ + 1).flatMap(respond).map(status => Response[IO](status))
+      }
+      (Client.fromHttpApp(app), calls)
+    }
+
+  test("Reads are retried after a server error") {
+    val prog = for {
+      (client, calls) <- counting(n => IO.pure(if (n < 1) ServiceUnavailable else Ok))
+      layer <- Resilience.create(settings, ClientMetrics.noop)
+      status <- layer(client).status(read)
+      made <- calls.get
+    } yield (status, made)
+    prog.asserting(_ shouldBe ((Ok, 2)))
+  }
+
+  test("Writes are not retried and the circuit opens after consecutive failures") {
+    val prog = for {
+      (client, calls) <- counting(_ => IO.pure(InternalServerError))
+      layer <- Resilience.create(settings.copy(breakerFailureThreshold = 2), ClientMetrics.noop)
+      first <- layer(client).status(write).attempt
+      second <- layer(client).status(write).attempt
+      third <- layer(client).status(write).attempt
+      made <- calls.get
+    } yield (first.isLeft, second.isLeft, third.left.toOption.map(_.getClass), made)
+    prog.asserting(_ shouldBe ((true, true, Some(classOf[CircuitOpenException]), 2)))
+  }
+
+  test("A hedged read returns before a slow first attempt") {
+    val hedging = settings.copy(hedgeQuantile = 0.95, hedgeMinDelayMillis = 10)
+    val prog = for {
+      (client, calls) <- counting(n => IO.sleep(if (n < 1) 5.seconds else Duration.Zero).as(Ok))
+      layer <- Resilience.create(hedging, ClientMetrics.noop)
+      timed <- layer(client).status(read).timed
+      made <- calls.get
+    } yield (timed._2, timed._1 < 1.second, made)
+    prog.asserting(_ shouldBe ((Ok, true, 2)))
+  }
+
+  test("Failed attempts count toward the hedge delay") {
+    val hedging = settings.copy(
+      hedgeQuantile = 0.95,
+      hedgeMinDelayMillis = 10,
+      maxRetries = 0,
+      breakerFailureThreshold = 1000)
+    val prog = for {
+      failing <- Ref.of[IO, Boolean](true)
+      calls <- Ref.of[IO, Int](0)
+      app = HttpApp[IO] { _ =>
+        failing.get.flatMap {
+          case true => IO.sleep(200.millis).as(Response[IO](ServiceUnavailable))
+          case false => calls.update(_ + 1) *> IO.sleep(100.millis).as(Response[IO](Ok))
+        }
+      }
+      layer <- Resilience.create(hedging, ClientMetrics.noop)
+      client = layer(Client.fromHttpApp(app))
+      _ <- List.fill(20)(client.status(read).attempt).parSequence_
+      _ <- failing.set(false)
+      status <- client.status(read)
+      made <- calls.get
+    } yield (status, made)
+    prog.asserting(_ shouldBe ((Ok, 1)))
+  }
+}
@@ -0,0 +1,36 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{IO, Ref}
+import cats.implicits._
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+class ResourceCacheSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  private val resource = DbioResource(None, "", "doc", "id", "Patient")
+
+  private def key(id: String) = ResourceKey("jane@example.com", "Patient", id)
+
+  test("Sealed resource cache round trips plaintext") {
+    val plaintext = """{"resourceType":"Patient"}""".getBytes("UTF-8")
+    val prog = for {
+      cache <- ResourceCache.create(1 << 20, 0, encrypted = true)
+      first <- cache.getOrLoad(key("id"))(IO.pure(CachedResource(resource, plaintext)))
+      second <- cache.getOrLoad(key("id"))(IO.raiseError(new IllegalStateException("not cached")))
+    } yield List(first, second).map(r => new String(r.plaintext, "UTF-8"))
+    prog.asserting(_.distinct shouldBe List("""{"resourceType":"Patient"}"""))
+  }
+
+  test("Resources are evicted least recently used first past the byte budget") {
+    // each entry weighs its 1000 bytes of plaintext plus a fixed overhead, so two fit
+    val entry = CachedResource(resource, new Array[Byte](1000))
+    val prog = for {
+      cache <- ResourceCache.create(3200, 0, encrypted = false)
+      loads <- Ref.of[IO, List[String]](Nil)
+      load = (id: String) => loads.update(id :: _).as(entry)
+      _ <- List("a", "b", "a", "c", "a", "b").traverse(id => cache.getOrLoad(key(id))(load(id)))
+      loaded <- loads.get
+    } yield loaded.reverse
+    prog.asserting(_ shouldBe List("a", "b", "c", "b"))
+  }
+}
@@ -0,0 +1,57 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import com.dbio.protocol.stub.{FakeCrypto, StubFaults, StubFixture}
+import ironoxide.v1.common.UserId
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+class StubSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  test("Resources round trip through the protocol stub") {
+    val plaintext = """{"resourceType":"Patient"}""".getBytes("UTF-8")
+    val post = StubFixture.post("Patient", "id", plaintext)
+    val get = StubFixture.get("Patient", "id")
+    val prog = for {
+      clients <- StubFixture.clients
+      first <- DbioResource.create(post).run(clients)
+      again <- DbioResource.create(post).run(clients)
+      out <- DbioResource.get(get).run(clients)
+    } yield (first.created, again.created, new String(out.plaintext, "UTF-8"))
+    prog.asserting(_ shouldBe ((true, false, """{"resourceType":"Patient"}""")))
+  }
+
+  test("Batch reads report unreadable ids per entry") {
+    val ids = List("a", "missing", "b")
+    val posts = List("a", "b").map { id =>
+      val plaintext = s"""{"resourceType":"Patient","id":"$id"}""".getBytes("UTF-8")
+      StubFixture.post("Patient", id, plaintext)
+    }
+    val prog = for {
+      clients <- StubFixture.clients
+      _ <- DbioResource.createAll(posts, 2).run(clients)
+      out <- DbioResource
+        .getAll(StubFixture.Subject, StubFixture.Provider, "Patient", ids, 2)
+        .run(clients)
+    } yield out.map(_.map(_.resource.fhirResourceId).toOption)
+    prog.asserting(_ shouldBe List(Some("a"), None, Some("b")))
+  }
+
+  test("Stubs fail requests at the injected error rate") {
+    val faults = StubFaults(latencyMillis = 1, jitterMillis = 1, errorRate = 1)
+    val prog = for {
+      clients <- StubFixture.clients(faults)
+      out <- DbioResource.get(StubFixture.get("Patient", "id")).run(clients).attempt
+    } yield out.isLeft
+    prog.asserting(_ shouldBe true)
+  }
+
+  test("Fake crypto with AES round trips without leaving plaintext in the ciphertext") {
+    val plaintext = """{"resourceType":"Patient"}""".getBytes("UTF-8")
+    val prog = for {
+      crypto <- FakeCrypto.create(0, aes = true)
+      doc <- crypto.encrypt(plaintext, UserId(StubFixture.Provider), UserId(StubFixture.Subject))
+      out <- crypto.decrypt(doc.ciphertext)
+    } yield (doc.ciphertext.sameElements(plaintext), out.sameElements(plaintext))
+    prog.asserting(_ shouldBe ((false, true)))
+  }
+}
@@ -1,11 +1,15 @@
 package com.dbio.protocol
 
 import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{IO, Ref}
+import cats.implicits._
 import io.circe.syntax._
-import ironoxide.v1.common.UserId
+import ironoxide.v1.common.{GroupId, UserId}
 import org.scalatest.funsuite.AsyncFunSuite
 import org.scalatest.matchers.should.Matchers
 
+import scala.concurrent.duration._
+
 class TestSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
   test("Round trip encrypt/decrypt with IronCore") {
     val plaintext = """{"id":"myResourceId","type":"Patient"}""".asJson
@@ -23,4 +27,38 @@ class TestSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
       j1 should ===(plaintext)
     }
   }
+
+  test("Concurrent transfer encryption resolves the transfer group once") {
+    val key = UserId("testUser1") -> UserId("testUser2")
+    val prog = for {
+      groups <- Memo[(UserId, UserId), GroupId](16, None)
+      resolves <- Ref.of[IO, Int](0)
+      resolve = resolves.update(_ + 1) *> IO.sleep(20.millis).as(GroupId("group"))
+      encrypt = TransferGroups.encrypt(key, groups, resolve, _ => IO.pure(false))(id =>
+        IO.pure(id.id))
+      outs <- List.fill(10)(encrypt).parSequence
+      n <- resolves.get
+    } yield outs.distinct -> n
+    prog.asserting(_ shouldBe (List("group") -> 1))
+  }
+
+  test("Transfer groups are resolved again only when encryption finds them gone") {
+    val key = UserId("testUser1") -> UserId("testUser2")
+    def run(gone: Boolean) =
+      for {
+        groups <- Memo[(UserId, UserId), GroupId](16, None)
+        resolves <- Ref.of[IO, Int](0)
+        attempts <- Ref.of[IO, Int](0)
+        resolve = resolves.updateAndGet(_ + 1).map(n => GroupId(s"group$n"))
+        encrypt = (id: GroupId) =>
+          attempts.updateAndGet(_ + 1).flatMap { n =>
+            if (n === 1) IO.raiseError[String](new IllegalStateException("encrypt failed"))
+            else IO.pure(id.id)
+          }
+        out <- TransferGroups.encrypt(key, groups, resolve, _ => IO.pure(gone))(encrypt).attempt
+        n <- resolves.get
+      } yield out.toOption -> n
+    (run(gone = true), run(gone = false)).tupled.asserting(
+      _ shouldBe ((Some("group2") -> 2, None -> 1)))
+  }
 }
@@ -0,0 +1,76 @@
+package com.dbio.protocol
+
+import cats.effect.testing.scalatest.AsyncIOSpec
+import cats.effect.{IO, Ref}
+import cats.implicits._
+import org.scalatest.funsuite.AsyncFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.nio.file.{Files, StandardOpenOption}
+import java.time.ZonedDateTime
+
+class WriteIndexSuite extends AsyncFunSuite with AsyncIOSpec with Matchers {
+  private val key = ResourceKey("jane@example.com", "Patient", "id")
+  private val response = DbioPostResponse(
+    "id",
+    "doc",
+    "0xsubject",
+    "0xcreator",
+    "Patient",
+    "ciphertext",
+    ZonedDateTime.parse("2022-05-18T12:00:00Z"))
+
+  test("Concurrent creates of the same resource upload it once") {
+    val prog = for {
+      index <- WriteIndex.inMemory
+      uploads <- Ref.of[IO, Int](0)
+      upload = uploads.update(_ + 1).as(response)
+      outs <- List.fill(5)(index.getOrCreate(key)(upload)).parSequence
+      n <- uploads.get
+    } yield outs.count(_.created) -> n
+    prog.asserting(_ shouldBe (1 -> 1))
+  }
+
+  test("Written resources are replayed from the index file") {
+    val prog = for {
+      dir <- IO.blocking(Files.createTempDirectory("write-index"))
+      file = dir.resolve("index.jsonl")
+      first <- WriteIndex.open(file.toString)
+      _ <- first.getOrCreate(key)(IO.pure(response))
+      truncated = "{\"key\":".getBytes("UTF-8")
+      _ <- IO.blocking(Files.write(file, truncated, StandardOpenOption.APPEND))
+      second <- WriteIndex.open(file.toString)
+      out <- second.getOrCreate(key)(IO.raiseError(new IllegalStateException("uploaded again")))
+    } yield out
+    prog.asserting { out =>
+      out.created shouldBe false
+      out.response shouldBe response.copy(ciphertext = "")
+    }
+  }
+
+  test("A write the file cannot record is still remembered") {
+    val prog = for {
+      dir <- IO.blocking(Files.createTempDirectory("write-index"))
+      file = dir.resolve("index.jsonl")
+      index <- WriteIndex.open(file.toString)
+      _ <- IO.blocking(Files.delete(file))
+      first <- index.getOrCreate(key)(IO.pure(response))
+      second <- index.getOrCreate(key)(IO.raiseError(new IllegalStateException("uploaded again")))
+    } yield first.created -> second.created
+    prog.asserting(_ shouldBe (true -> false))
+  }
+
+  test("The index file is compacted to the most recent writes") {
+    def keyed(n: Int) = ResourceKey("jane@example.com", "Patient", s"id$n")
+    val prog = for {
+      dir <- IO.blocking(Files.createTempDirectory("write-index"))
+      file = dir.resolve("index.jsonl")
+      index <- WriteIndex.open(file.toString, 2)
+      _ <- (1 to 4).toList.traverse_(n => index.getOrCreate(keyed(n))(IO.pure(response)))
+      lines <- IO.blocking(Files.readAllLines(file).size)
+      reopened <- WriteIndex.open(file.toString, 2)
+      kept <- (1 to 4).toList.traverse(n => reopened.get(keyed(n)).map(_.isDefined))
+    } yield lines -> kept
+    prog.asserting(_ shouldBe (2 -> List(false, false, true, true)))
+  }
+}
@@ -0,0 +1,45 @@
+package com.dbio.protocol.stub
+
+import cats.effect.IO
+import com.dbio.protocol.ResourceCache.Sealer
+import com.dbio.protocol.{DocumentCrypto, EncryptedDocument}
+import ironoxide.v1.common.UserId
+
+import scala.concurrent.duration._
+
+import java.util.{Arrays, UUID}
+
+/** Document crypto which does no key management: documents are registered under a random id and
+  * can be decrypted by anyone holding this instance. Lets the protocol client run without IronCore
+  * or its native library.
+  *
+  * By default the ciphertext is a copy of the plaintext. For load tests, `sealer` really encrypts
+  * documents with AES-GCM, costing about the CPU IronCore's document encryption does, and
+  * `latency` is slept on every call in place of IronCore's round trips to its service.
+  */
+final class FakeCrypto private[protocol] (latency: FiniteDuration, sealer: Option[Sealer])
+    extends DocumentCrypto {
+
+  def this() = this(Duration.Zero, None)
+
+  def encrypt(plaintext: Array[Byte], from: UserId, to: UserId): IO[EncryptedDocument] =
+    IO.sleep(latency) *> sealer
+      .fold(IO(plaintext.clone()))(_.sealBytes(plaintext))
+      .map(EncryptedDocument(UUID.randomUUID().toString.replaceAll("-", ""), _))
+
+  def decrypt(ciphertext: Array[Byte]): IO[Array[Byte]] =
+    IO.sleep(latency) *> sealer.fold(IO(Arrays.copyOf(ciphertext, ciphertext.length)))(
+      _.unsealBytes(ciphertext))
+
+}
+
+object FakeCrypto {
+
+  /** Fake crypto sleeping `latencyMillis` on every call and, when `aes` is on, really encrypting
+    * documents under a key generated for this instance.
+    */
+  def create(latencyMillis: Long, aes: Boolean): IO[FakeCrypto] =
+    (if (aes) Sealer.create.map(Option(_)) else IO.pure(None))
+      .map(new FakeCrypto(latencyMillis.millis, _))
+
+}
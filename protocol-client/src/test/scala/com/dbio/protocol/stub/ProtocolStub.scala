@@ -0,0 +1,195 @@
+package com.dbio.protocol.stub
+
+import cats.effect.std.Random
+import cats.effect.{IO, Ref}
+import cats.implicits._
+import com.dbio.protocol._
+import org.http4s.circe.CirceEntityCodec._
+import org.http4s.client.Client
+import org.http4s.dsl.io._
+import org.http4s.{HttpApp, HttpRoutes}
+
+import scala.concurrent.duration._
+
+import java.time.ZonedDateTime
+import java.util.UUID
+
+/** Latency and errors a [[ProtocolStub]] injects into every request.
+  *
+  * @param latencyMillis
+  *   least time taken to answer a request
+  * @param jitterMillis
+  *   most time added to `latencyMillis`, uniformly at random
+  * @param errorRate
+  *   fraction of requests answered `503 Service Unavailable` instead, from 0 to 1
+  */
+final case class StubFaults(
+  latencyMillis: Long,
+  jitterMillis: Long,
+  errorRate: Double
+)
+
+object StubFaults {
+  val Default: StubFaults = StubFaults(latencyMillis = 0, jitterMillis = 0, errorRate = 0)
+}
+
+/** In-process stand-in for dbio-protocol, serving the routes the protocol client uses from memory.
+  * Every email is a registered user, uploaded resources are only ever unclaimed and access requests
+  * stay open. Every request is delayed and failed as `faults` says.
+  */
+final class ProtocolStub private (
+  resources: Ref[IO, Map[(String, String, String), DbioResource]],
+  requests: Ref[IO, Map[(String, Int), AccessRequestStatus]],
+  faults: StubFaults,
+  random: Random[IO]
+) {
+  import ProtocolStub._
+
+  private val routes: HttpApp[IO] = HttpRoutes
+    .of[IO] {
+      case GET -> Root / "dbio" / "users" / "email" / email =>
+        Ok(User(ethAddress(email), email))
+
+      case req @ POST -> Root / "dbio" / "resources" / "unclaimed" =>
+        for {
+          body <- req.as[PostPayload]
+          subject = ethAddress(body.email)
+          resource = DbioResource(
+            None,
+            body.ciphertext,
+            body.ironcoreDocumentId,
+            body.fhirResourceId,
+            body.fhirResourceType)
+          key = (subject, body.fhirResourceType, body.fhirResourceId)
+          _ <- resources.update(_.updated(key, resource))
+          now <- IO(ZonedDateTime.now())
+          out <- Created(
+            DbioPostResponse(
+              body.fhirResourceId,
+              body.ironcoreDocumentId,
+              subject,
+              body.creatorEthAddress,
+              body.fhirResourceType,
+              body.ciphertext,
+              now))
+        } yield out
+
+      case GET -> Root / "dbio" / "resources" / "unclaimed" / subject / kind / id / _ =>
+        resources.get.flatMap(_.get((subject, kind, id)).fold(NotFound())(Ok(_)))
+
+      case GET -> Root / "dbio" / "resources" / "claimed" / _ / _ / _ / _ =>
+        NotFound()
+
+      case req @ POST -> Root / "dbio" / route if RequestRoutes.contains(route) =>
+        for {
+          ar <- req.as[AccessRequest]
+          now <- IO(ZonedDateTime.now())
+          status <- requests.modify { table =>
+            val status = AccessRequestStatus(
+              table.size + 1,
+              ar.requestorEthAddress,
+              ar.requestorDetails,
+              ar.requesteeEthAddress,
+              requestApproved = false,
+              requestOpen = true,
+              now,
+              now,
+              None)
+            table.updated(route -> status.id, status) -> status
+          }
+          out <- Created(status)
+        } yield out
+
+      case GET -> Root / "dbio" / route / "id" / IntVar(id) if RequestRoutes.contains(route) =>
+        requests.get.flatMap(_.get(route -> id).fold(NotFound())(Ok(_)))
+
+      case GET -> Root / "dbio" / route / requestee if RequestRoutes.contains(route) =>
+        requests.get.flatMap { table =>
+          val open = table.toList.collect {
+            case ((r, _), status) if r === route && status.requesteeEthAddress === requestee =>
+              status
+          }
+          Ok(open.sortBy(_.id))
+        }
+    }
+    .orNotFound
+
+  val app: HttpApp[IO] = HttpApp[IO] { req =>
+    for {
+      jitter <- random.nextDouble
+      _ <- IO.sleep((faults.latencyMillis + (faults.jitterMillis * jitter).toLong).millis)
+      roll <- random.nextDouble
+      out <- if (roll < faults.errorRate) ServiceUnavailable() else routes.run(req)
+    } yield out
+  }
+
+  /** Client whose requests are answered by this stub without any network. */
+  val client: Client[IO] = Client.fromHttpApp(app)
+
+}
+
+object ProtocolStub {
+
+  private val RequestRoutes = Set("read_requests", "write_requests")
+
+  /** Creates a stub with no resources or access requests. */
+  def create: IO[ProtocolStub] = create(StubFaults.Default)
+
+  /** Creates a stub with no resources or access requests, injecting `faults`. */
+  def create(faults: StubFaults): IO[ProtocolStub] =
+    for {
+      resources <- Ref.of[IO, Map[(String, String, String), DbioResource]](Map.empty)
+      requests <- Ref.of[IO, Map[(String, Int), AccessRequestStatus]](Map.empty)
+      random <- Random.scalaUtilRandom[IO]
+    } yield new ProtocolStub(resources, requests, faults, random)
+
+  /** Ethereum address the stub assigns to the user with the given email. */
+  def ethAddress(email: String): String =
+    "0x" + UUID.nameUUIDFromBytes(email.getBytes("UTF-8")).toString.replaceAll("-", "")
+
+  /** Protocol clients wired to `stub` and `crypto`, with fresh caches and an in-memory write index.
+    *
+    * @param resourceCacheBytes
+    *   budget for decrypted resources; 0 sends every read through the stub and `crypto`
+    */
+  def clients(
+    stub: ProtocolStub,
+    crypto: DocumentCrypto,
+    resourceCacheBytes: Long
+  ): IO[InjectClients] =
+    clients(stub.client, crypto, resourceCacheBytes, ClientMetrics.noop)
+
+  /** Protocol clients wired to `stub` like the above, but calling it through the same metrics and
+    * default resilience layer as a client of the real dbio-protocol, for load tests.
+    */
+  def clients(
+    stub: ProtocolStub,
+    crypto: DocumentCrypto,
+    resourceCacheBytes: Long,
+    metrics: ClientMetrics
+  ): IO[InjectClients] =
+    Resilience.create(ResilienceSettings.Default, metrics).flatMap { layer =>
+      clients(layer(metrics.instrument(stub.client)), crypto, resourceCacheBytes, metrics)
+    }
+
+  private def clients(
+    client: Client[IO],
+    crypto: DocumentCrypto,
+    resourceCacheBytes: Long,
+    metrics: ClientMetrics
+  ): IO[InjectClients] =
+    for {
+      users <- DbioResource.userCache(1024, 600)
+      resources <- ResourceCache.create(resourceCacheBytes, 0, encrypted = false)
+      locations <- DbioResource.locationCache(16384, 60)
+      writes <- WriteIndex.inMemory
+    } yield InjectClients(
+      crypto,
+      client,
+      users,
+      resources,
+      locations,
+      writes,
+      metrics)
+
+}
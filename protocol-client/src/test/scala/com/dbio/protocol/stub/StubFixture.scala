@@ -0,0 +1,37 @@
+package com.dbio.protocol.stub
+
+import cats.effect.IO
+import com.dbio.protocol._
+
+/** Setup shared by suites exercising the protocol client against a [[ProtocolStub]]: a provider
+  * and a subject, requests between them, and clients wired to a fresh stub with no resource cache,
+  * so every read goes through the stub.
+  */
+object StubFixture {
+
+  val Provider = "provider@example.com"
+
+  val Subject = "jane@example.com"
+
+  val ProviderEthAddress: String = ProtocolStub.ethAddress(Provider)
+
+  /** Upload of `plaintext` as the subject's resource, on behalf of the provider. */
+  def post(resourceType: String, id: String, plaintext: Array[Byte]): DbioPostRequest =
+    DbioPostRequest(Subject, Provider, ProviderEthAddress, resourceType, id, plaintext)
+
+  /** Read of the subject's resource by the provider. */
+  def get(resourceType: String, id: String): DbioGetRequest =
+    DbioGetRequest(Subject, Provider, resourceType, id)
+
+  /** Clients of a fresh stub with fake crypto. */
+  def clients: IO[InjectClients] = clients(new FakeCrypto)
+
+  /** Clients of a fresh stub with the given crypto. */
+  def clients(crypto: DocumentCrypto): IO[InjectClients] =
+    ProtocolStub.create.flatMap(ProtocolStub.clients(_, crypto, 0))
+
+  /** Clients of a fresh stub injecting `faults`, with fake crypto. */
+  def clients(faults: StubFaults): IO[InjectClients] =
+    ProtocolStub.create(faults).flatMap(ProtocolStub.clients(_, new FakeCrypto, 0))
+
+}
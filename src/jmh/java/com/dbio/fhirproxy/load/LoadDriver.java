@@ -0,0 +1,270 @@
+package com.dbio.fhirproxy.load;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.dbio.fhirproxy.providers.Payloads;
+import com.dbio.protocol.stub.ProtocolStub;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Closed-loop load generator for a running proxy, usually one started with the `loadtest` profile
+ * so that dbio-protocol and IronCore are stubbed in process. Each worker sends one request at a
+ * time, picking by weight between creating a Patient, DiagnosticReport or ImagingStudy, searching
+ * for one created earlier, and creating or searching access requests, for a random subject out of
+ * a fixed pool. Requests finished during the warmup are not counted. At the end throughput and
+ * p50/p99/p999 latencies are printed per operation and overall.
+ *
+ * Arguments, all optional: base URL, workers, seconds measured, seconds of warmup and the mix as
+ * weights, e.g. `http://localhost:8080/fhir 32 60 10 create=30,search=50,access-create=5,access-search=15`.
+ */
+public final class LoadDriver {
+    private static final String[] TYPES = {"Patient", "DiagnosticReport", "ImagingStudy"};
+    private static final int SUBJECTS = 100;
+    private static final int REMEMBERED = 4096;
+
+    private final FhirContext context = FhirContext.forR4();
+    private final String base;
+    private final Map<String, Integer> mix;
+    private final int totalWeight;
+    private final long measureFrom;
+    private final long stopAt;
+    private final AtomicReferenceArray<String[]> created = new AtomicReferenceArray<>(REMEMBERED);
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private LoadDriver(String base, Map<String, Integer> mix, long measureFrom, long stopAt) {
+        this.base = base;
+        this.mix = mix;
+        this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        this.measureFrom = measureFrom;
+        this.stopAt = stopAt;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String base = args.length > 0 ? args[0] : "http://localhost:8080/fhir";
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int warmup = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        Map<String, Integer> mix = parseMix(args.length > 4 ? args[4] : "create=30,search=50,access-create=5,access-search=15");
+        System.out.printf("Driving %s with %d workers for %d s after %d s of warmup, mix %s%n", base, workers, seconds, warmup, mix);
+
+        long start = System.nanoTime();
+        LoadDriver driver = new LoadDriver(base, mix, start + TimeUnit.SECONDS.toNanos(warmup), start + TimeUnit.SECONDS.toNanos(warmup + seconds));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Map<String, Samples>>> results = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            results.add(pool.submit(driver::work));
+        }
+        Map<String, Samples> merged = new LinkedHashMap<>();
+        for (Future<Map<String, Samples>> result : results) {
+            result.get().forEach((operation, samples) -> merged.computeIfAbsent(operation, k -> new Samples()).addAll(samples));
+        }
+        pool.shutdown();
+        report(merged, seconds);
+    }
+
+    private Map<String, Samples> work() {
+        Map<String, Samples> samples = new LinkedHashMap<>();
+        for (String operation : mix.keySet()) {
+            samples.put(operation, new Samples());
+        }
+        while (System.nanoTime() < stopAt) {
+            String operation = pick();
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                ok = send(operation);
+            } catch (IOException e) {
+                ok = false;
+            }
+            long end = System.nanoTime();
+            if (start >= measureFrom && end <= stopAt) {
+                samples.get(operation).add(end - start, ok);
+            }
+        }
+        return samples;
+    }
+
+    private String pick() {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty mix");
+    }
+
+    private boolean send(String operation) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String subject = String.format("patient%d@example.com", random.nextInt(SUBJECTS));
+        switch (operation) {
+            case "create":
+                return create(TYPES[random.nextInt(TYPES.length)], subject, random.nextInt(5) == 0);
+            case "search":
+                String[] known = created.get(random.nextInt((int) Math.max(1, Math.min(REMEMBERED, createdCount.get()))));
+                if (known == null) {
+                    return create(TYPES[random.nextInt(TYPES.length)], subject, false);
+                }
+                return request("GET", String.format("%s/%s?id=%s&subjectEmail=%s", base, known[0], encode(known[1]), encode(known[2])), null) < 300;
+            case "access-create":
+                String body = String.format("{\"resourceType\":\"DbioAccessRequest\",\"requestee_eth_address\":\"%s\",\"access_request_type\":\"%s\"}",
+                        ProtocolStub.ethAddress(subject), random.nextBoolean() ? "ReadRequest" : "WriteRequest");
+                return request("POST", base + "/DbioAccessRequest", body) < 300;
+            case "access-search":
+                return request("GET", String.format("%s/DbioAccessRequest?requestee_eth_address=%s", base, ProtocolStub.ethAddress(subject)), null) < 300;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown operation: %s", operation));
+        }
+    }
+
+    /**
+     * Create a resource made unique by a random extension, so that it is not skipped as a repeat,
+     * and remember its id for searches.
+     */
+    private boolean create(String type, String subject, boolean large) throws IOException {
+        DomainResource resource = Payloads.resource(type, large);
+        resource.getExtension().add(new Extension("urn:dbio:load", new StringType(UUID.randomUUID().toString())));
+        String body = context.newJsonParser().encodeResourceToString(resource);
+        HttpURLConnection connection = open("POST", String.format("%s/%s?subjectEmail=%s", base, type, encode(subject)), body);
+        int status = finish(connection);
+        String location = connection.getHeaderField("Location");
+        int at = location == null ? -1 : location.indexOf("/" + type + "/");
+        if (status < 300 && at >= 0) {
+            String id = location.substring(at + type.length() + 2).split("/")[0];
+            created.set((int) (createdCount.getAndIncrement() % REMEMBERED), new String[]{type, id, subject});
+        }
+        return status < 300;
+    }
+
+    private int request(String method, String url, String body) throws IOException {
+        return finish(open(method, url, body));
+    }
+
+    private static HttpURLConnection open(String method, String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/fhir+json");
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/fhir+json; charset=UTF-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Read the whole response, so that the connection goes back to the keep-alive pool.
+     */
+    private static int finish(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try (InputStream body = in) {
+                byte[] buffer = new byte[8192];
+                while (body.read(buffer) >= 0) {
+                    // discard
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] weight = part.split("=");
+            if (Integer.parseInt(weight[1]) > 0) {
+                mix.put(weight[0].trim(), Integer.parseInt(weight[1]));
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No operations in mix: %s", spec));
+        }
+        return mix;
+    }
+
+    private static void report(Map<String, Samples> samples, int seconds) {
+        System.out.printf("%-14s %9s %7s %9s %9s %9s %9s%n", "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms");
+        Samples all = new Samples();
+        for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+            row(entry.getKey(), entry.getValue(), seconds);
+            all.addAll(entry.getValue());
+        }
+        row("all", all, seconds);
+    }
+
+    private static void row(String operation, Samples samples, int seconds) {
+        long[] sorted = samples.sorted();
+        System.out.printf("%-14s %9d %7d %9.1f %9.2f %9.2f %9.2f%n", operation, sorted.length, samples.errors, (double) sorted.length / seconds,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Latencies in nanoseconds of one worker's requests of one operation, failed ones included.
+     */
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+        private long errors;
+
+        void add(long nanos, boolean ok) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i], true);
+            }
+            errors += other.errors;
+        }
+
+        long[] sorted() {
+            long[] out = Arrays.copyOf(values, size);
+            Arrays.sort(out);
+            return out;
+        }
+    }
+}
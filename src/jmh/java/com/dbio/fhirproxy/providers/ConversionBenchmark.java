@@ -0,0 +1,86 @@
+package com.dbio.fhirproxy.providers;
+
+import com.dbio.fhirproxy.resources.DbioAccessRequest;
+import com.dbio.protocol.AccessRequestStatus;
+import com.dbio.protocol.DbioPostResponse;
+import io.circe.Decoder;
+import io.circe.Decoder$;
+import io.circe.jawn.JawnParser;
+import org.openjdk.jmh.annotations.*;
+import scala.Option;
+import scala.util.Either;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of protocol server responses and their conversion to what the providers return.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+    @Param({"1", "100"})
+    public int requests;
+
+    private final JawnParser parser = new JawnParser();
+    private final Decoder<scala.collection.immutable.List<AccessRequestStatus>> statusesDecoder =
+            Decoder$.MODULE$.decodeList(AccessRequestStatus.decARS());
+    private String postResponseJson;
+    private String statusesJson;
+    private AccessRequestStatus status;
+    private scala.collection.immutable.List<AccessRequestStatus> statuses;
+
+    @Setup
+    public void setup() {
+        postResponseJson = "{\"fhir_resource_id\":\"0f8fad5b-d9cb-369f-a165-70867728950e\","
+                + "\"ironcore_document_id\":\"4a7c9f9b1c2d4e5f8a9b0c1d2e3f4a5b\","
+                + "\"subject_eth_address\":\"0x6a0f3c8b9d1e2f3a4b5c6d7e8f9a0b1c2d3e4f5a\","
+                + "\"creator_eth_address\":\"0x1b2c3d4e5f6a7b8c9d0e1f2a3b4c5d6e7f8a9b0c\","
+                + "\"fhir_resource_type\":\"Patient\","
+                + "\"ciphertext\":\"" + new String(new char[4096]).replace('\0', 'A') + "\","
+                + "\"timestamp\":\"2022-05-18T12:00:00Z\"}";
+        StringBuilder json = new StringBuilder("[");
+        List<AccessRequestStatus> list = new ArrayList<>();
+        ZonedDateTime now = ZonedDateTime.parse("2022-05-18T12:00:00Z");
+        for (int i = 0; i < requests; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"id\":").append(i)
+                    .append(",\"requestor_eth_address\":\"0x1b2c3d4e5f6a7b8c9d0e1f2a3b4c5d6e7f8a9b0c\"")
+                    .append(",\"requestor_details\":\"Massachusetts General Hospital\"")
+                    .append(",\"requestee_eth_address\":\"0x6a0f3c8b9d1e2f3a4b5c6d7e8f9a0b1c2d3e4f5a\"")
+                    .append(",\"request_approved\":false,\"request_open\":true")
+                    .append(",\"created_time\":\"2022-05-18T12:00:00Z\",\"last_updated_time\":\"2022-05-18T12:00:00Z\"}");
+            list.add(new AccessRequestStatus(i, "0x1b2c3d4e5f6a7b8c9d0e1f2a3b4c5d6e7f8a9b0c", "Massachusetts General Hospital",
+                    "0x6a0f3c8b9d1e2f3a4b5c6d7e8f9a0b1c2d3e4f5a", false, true, now, now, Option.apply("ReadRequest")));
+        }
+        statusesJson = json.append("]").toString();
+        status = list.get(0);
+        statuses = ProviderUtils.toScalaList(list);
+    }
+
+    @Benchmark
+    public Either<io.circe.Error, DbioPostResponse> decodePostResponse() {
+        return parser.decode(postResponseJson, DbioPostResponse.postDecoder());
+    }
+
+    @Benchmark
+    public Either<io.circe.Error, scala.collection.immutable.List<AccessRequestStatus>> decodeAccessRequestStatuses() {
+        return parser.decode(statusesJson, statusesDecoder);
+    }
+
+    @Benchmark
+    public DbioAccessRequest fromAccessRequestStatus() {
+        return DbioAccessRequestProvider.fromAccessRequestStatus(status);
+    }
+
+    @Benchmark
+    public List<AccessRequestStatus> toJavaList() {
+        return ProviderUtils.toJavaList(statuses);
+    }
+}
@@ -0,0 +1,97 @@
+package com.dbio.fhirproxy.providers;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Representative resources for benchmarks. Small payloads are what a single visit produces; large
+ * ones carry the repeated elements and attachments seen in real exports.
+ */
+public final class Payloads {
+    private Payloads() {
+    }
+
+    public static DomainResource resource(String type, boolean large) {
+        switch (type) {
+            case "Patient":
+                return patient(large);
+            case "DiagnosticReport":
+                return diagnosticReport(large);
+            case "ImagingStudy":
+                return imagingStudy(large);
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported resource type: %s", type));
+        }
+    }
+
+    public static Patient patient(boolean large) {
+        Patient patient = new Patient();
+        patient.addIdentifier()
+                .setSystem("urn:oid:1.2.36.146.595.217.0.1")
+                .setValue("12345")
+                .setType(new CodeableConcept().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "MR", null)));
+        patient.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Chalmers").addGiven("Peter").addGiven("James");
+        patient.setGender(Enumerations.AdministrativeGender.MALE).setBirthDate(new Date(156_000_000_000L)).setActive(true);
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("(03) 5555 6473");
+        patient.addAddress().addLine("534 Erewhon St").setCity("PleasantVille").setState("Vic").setPostalCode("3999");
+        if (large) {
+            for (int i = 0; i < 50; i++) {
+                patient.addIdentifier().setSystem("urn:oid:1.2.36.146.595.217.0." + i).setValue(Integer.toString(10_000 + i));
+                patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue(String.format("(03) 5555 %04d", i)).setRank(i + 1);
+                patient.addAddress().addLine(i + " Erewhon St").setCity("PleasantVille").setState("Vic").setPostalCode("3999");
+                patient.addContact().setName(new HumanName().setFamily("Chalmers").addGiven("Contact" + i));
+            }
+            patient.addPhoto().setContentType("image/jpeg").setData(bytes(64 * 1024));
+        }
+        return patient;
+    }
+
+    public static DiagnosticReport diagnosticReport(boolean large) {
+        DiagnosticReport report = new DiagnosticReport();
+        report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL)
+                .setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "58410-2", "CBC panel - Blood by Automated count")))
+                .setSubject(new Reference("Patient/example"))
+                .setIssued(new Date(1_650_000_000_000L))
+                .setConclusion("Normal complete blood count");
+        report.addResult(new Reference("Observation/hemoglobin"));
+        if (large) {
+            for (int i = 0; i < 100; i++) {
+                report.addResult(new Reference("Observation/result-" + i).setDisplay("Result " + i));
+            }
+            report.addPresentedForm().setContentType("application/pdf").setTitle("Report").setData(bytes(256 * 1024));
+        }
+        return report;
+    }
+
+    public static ImagingStudy imagingStudy(boolean large) {
+        ImagingStudy study = new ImagingStudy();
+        study.setStatus(ImagingStudy.ImagingStudyStatus.AVAILABLE)
+                .setSubject(new Reference("Patient/example"))
+                .setStarted(new Date(1_650_000_000_000L))
+                .setDescription("CT chest");
+        int seriesCount = large ? 20 : 1;
+        int instanceCount = large ? 50 : 1;
+        for (int s = 0; s < seriesCount; s++) {
+            ImagingStudy.ImagingStudySeriesComponent series = study.addSeries()
+                    .setUid("2.16.124.113543.6003.2588828330.45298.17418.2723805630." + s)
+                    .setNumber(s + 1)
+                    .setModality(new Coding("http://dicom.nema.org/resources/ontology/DCM", "CT", null));
+            for (int i = 0; i < instanceCount; i++) {
+                series.addInstance()
+                        .setUid("2.16.124.113543.6003.189642796.63084.16748.2599092903." + s + "." + i)
+                        .setNumber(i + 1)
+                        .setSopClass(new Coding("urn:ietf:rfc:3986", "urn:oid:1.2.840.10008.5.1.4.1.1.2", null));
+            }
+        }
+        study.setNumberOfSeries(seriesCount).setNumberOfInstances(seriesCount * instanceCount);
+        return study;
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] out = new byte[size];
+        new Random(42).nextBytes(out);
+        return out;
+    }
+}
@@ -0,0 +1,77 @@
+package com.dbio.fhirproxy.providers;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import cats.effect.IO;
+import cats.effect.unsafe.IORuntime;
+import com.dbio.fhirproxy.runtime.CacheProperties;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import com.dbio.fhirproxy.runtime.ProviderIdentity;
+import com.dbio.protocol.InjectClients;
+import com.dbio.protocol.stub.FakeCrypto;
+import com.dbio.protocol.stub.ProtocolStub;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provider reads and creates end to end, against an in-process protocol server stub and with
+ * encryption stubbed out, so the numbers cover only the proxy's own work. Reads either hit the
+ * decrypted resource cache or always go through the stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderBenchmark {
+    private static final String SUBJECT = "jane@example.com";
+    private static final ProviderIdentity PROVIDER = new ProviderIdentity("provider@example.com", null, ProtocolStub.ethAddress("provider@example.com"));
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Param({"small", "large"})
+    public String size;
+
+    private final AtomicLong created = new AtomicLong();
+    private PatientResourceProvider patients;
+    private Patient patient;
+    private StringOrListParam id;
+
+    /**
+     * Start every iteration with an empty stub so that stored creates do not pile up.
+     */
+    @Setup(Level.Iteration)
+    public void setup() {
+        ProtocolStub stub = run(ProtocolStub.create());
+        InjectClients clients = run(ProtocolStub.clients(stub, new FakeCrypto(), cached ? 64L << 20 : 0L));
+        patients = new PatientResourceProvider(new ProtocolRuntime(clients, PROVIDER, 8, new CacheProperties()));
+        patient = Payloads.patient(size.equals("large"));
+        id = new StringOrListParam().addOr(new StringParam(patients.createPatient(patient.copy(), SUBJECT, null, new MockHttpServletRequest(), new MockHttpServletResponse()).getId().getIdPart()));
+    }
+
+    @Benchmark
+    public List<IBaseResource> read() {
+        return patients.searchPatient(id, SUBJECT, new MockHttpServletRequest(), new MockHttpServletResponse()).getResources(0, 1);
+    }
+
+    @Benchmark
+    public MethodOutcome create() {
+        Patient fresh = patient.copy();
+        fresh.addIdentifier().setSystem("urn:dbio:bench").setValue(Long.toString(created.incrementAndGet()));
+        return patients.createPatient(fresh, SUBJECT, null, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    private static <A> A run(IO<A> io) {
+        return io.unsafeRunSync(IORuntime.global());
+    }
+}
@@ -0,0 +1,62 @@
+package com.dbio.fhirproxy.providers;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HAPI encoding and parsing of the resources the proxy stores, as done on every create and read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"Patient", "DiagnosticReport", "ImagingStudy"})
+    public String type;
+
+    @Param({"small", "large"})
+    public String size;
+
+    private DomainResource resource;
+    private Class<? extends DomainResource> resourceClass;
+    private String json;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        resource = Payloads.resource(type, size.equals("large"));
+        resourceClass = resource.getClass();
+        json = ProviderUtils.serialize(resource);
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return ProviderUtils.serialize(resource);
+    }
+
+    @Benchmark
+    public ProviderUtils.EncodedResource encode() {
+        return ProviderUtils.encode(resource);
+    }
+
+    @Benchmark
+    public String generateUUID() {
+        return ProviderUtils.generateUUID(resource);
+    }
+
+    @Benchmark
+    public DomainResource deserialize() {
+        return ProviderUtils.deserialize(resourceClass, json);
+    }
+
+    @Benchmark
+    public DomainResource deserializeBytes() {
+        return ProviderUtils.deserialize(resourceClass, bytes);
+    }
+}
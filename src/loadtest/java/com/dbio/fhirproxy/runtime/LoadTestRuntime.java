@@ -0,0 +1,56 @@
+package com.dbio.fhirproxy.runtime;
+
+import cats.effect.IO;
+import cats.effect.unsafe.IORuntime;
+import com.dbio.protocol.ClientMetrics;
+import com.dbio.protocol.InjectClients;
+import com.dbio.protocol.stub.FakeCrypto;
+import com.dbio.protocol.stub.ProtocolStub;
+import com.dbio.protocol.stub.StubFaults;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * The protocol runtime for load tests on a single machine: dbio-protocol is replaced by an
+ * in-process {@link ProtocolStub} injecting the configured latency and errors, and IronCore by a
+ * {@link FakeCrypto}, so no network, IronCore account or native library is needed. Everything
+ * else, from the FHIR servlet down to the protocol client's caches, resilience layer and metrics,
+ * is the same as in production. Write-behind ingest is off, so async creates are made inline.
+ *
+ * Only built into jars made with the `loadtest` Maven profile, along with the stubs from
+ * protocol-client's tests jar.
+ */
+@Configuration
+@Profile("loadtest")
+public class LoadTestRuntime {
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Bean
+    public ProtocolRuntime protocolRuntime(
+            @Value("${dbio.load-test.protocol.latency-ms:20}") long latencyMs,
+            @Value("${dbio.load-test.protocol.jitter-ms:10}") long jitterMs,
+            @Value("${dbio.load-test.protocol.error-rate:0}") double errorRate,
+            @Value("${dbio.load-test.crypto.latency-ms:5}") long cryptoLatencyMs,
+            @Value("${dbio.load-test.crypto.aes:true}") boolean cryptoAes,
+            @Value("${dbio.search.parallelism:8}") int parallelism,
+            @Value("${dbio.load-test.provider-email:provider@example.com}") String providerEmail,
+            CacheProperties caches,
+            MeterRegistry registry) {
+        ProviderIdentity provider = new ProviderIdentity(providerEmail, null, ProtocolStub.ethAddress(providerEmail));
+        StubFaults faults = new StubFaults(latencyMs, jitterMs, errorRate);
+        log.warn(String.format("[LoadTestRuntime] Serving from a protocol stub (%s) with fake crypto (%d ms, aes=%b); nothing is stored", faults, cryptoLatencyMs, cryptoAes));
+        ProtocolStub stub = run(ProtocolStub.create(faults));
+        FakeCrypto crypto = run(FakeCrypto.create(cryptoLatencyMs, cryptoAes));
+        InjectClients clients = run(ProtocolStub.clients(stub, crypto, caches.getResources().getMaxBytes(), new ClientMetrics(registry)));
+        return new ProtocolRuntime(clients, provider, parallelism, caches);
+    }
+
+    private static <A> A run(IO<A> io) {
+        return io.unsafeRunSync(IORuntime.global());
+    }
+}
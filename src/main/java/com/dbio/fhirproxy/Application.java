@@ -4,11 +4,13 @@ import com.dbio.fhirproxy.servlet.FhirRestfulServer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class Application {
 
     @Autowired
@@ -22,6 +24,7 @@ public class Application {
     public ServletRegistrationBean ServetRegistrationBean() {
         ServletRegistrationBean registration= new ServletRegistrationBean(new FhirRestfulServer(context),"/fhir/*");
         registration.setName("FhirServlet");
+        registration.setAsyncSupported(true);
         return registration;
     }
 }
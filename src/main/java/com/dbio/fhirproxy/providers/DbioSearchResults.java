@@ -0,0 +1,117 @@
+package com.dbio.fhirproxy.providers;
+
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import com.dbio.protocol.CircuitOpenException;
+import com.dbio.protocol.DbioGetResponse;
+import com.dbio.protocol.DbioResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.util.Either;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Search results for a list of ids of one resource type and subject. Nothing is fetched until HAPI
+ * asks for a page, and then only that page's ids are fetched and decrypted, concurrently. An id
+ * which cannot be read is returned as an OperationOutcome entry in its place, unless it is the only
+ * id searched for, in which case the search fails as a single read would.
+ */
+public class DbioSearchResults<R extends DomainResource> implements IBundleProvider {
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final ProtocolRuntime runtime;
+    private final Class<R> resourceClass;
+    private final String typeName;
+    private final String subjectEmail;
+    private final List<String> ids;
+    private final InstantType published = InstantType.withCurrentTime();
+    private List<IBaseResource> resolved;
+
+    public DbioSearchResults(ProtocolRuntime runtime, Class<R> resourceClass, String typeName, String subjectEmail, List<String> ids) {
+        this.runtime = runtime;
+        this.resourceClass = resourceClass;
+        this.typeName = typeName;
+        this.subjectEmail = subjectEmail;
+        this.ids = ids;
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return published;
+    }
+
+    /**
+     * Fetch all ids now rather than when HAPI asks for a page, failing as {@link #getResources} would,
+     * so that a caller can answer conditionally only for resources which can still be read. Meant
+     * for single reads: the resources are held until HAPI asks for them.
+     */
+    public DbioSearchResults<R> resolve() {
+        resolved = fetch(ids);
+        return this;
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+        if (resolved != null) {
+            return resolved.subList(Math.min(fromIndex, resolved.size()), Math.min(toIndex, resolved.size()));
+        }
+        return fetch(ids.subList(Math.min(fromIndex, ids.size()), Math.min(toIndex, ids.size())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<IBaseResource> fetch(List<String> page) {
+        List<Either<Throwable, DbioGetResponse>> results = ProviderUtils.toJavaList(
+                (scala.collection.immutable.List<Either<Throwable, DbioGetResponse>>) runtime.run(
+                        DbioResource.getAll(subjectEmail, runtime.provider().getEmail(), typeName, ProviderUtils.toScalaList(page), runtime.getSearchParallelism())
+                                .apply(runtime.clients())));
+        List<IBaseResource> out = new ArrayList<>(page.size());
+        for (int i = 0; i < results.size(); i++) {
+            String id = page.get(i);
+            Either<Throwable, DbioGetResponse> result = results.get(i);
+            if (result.isRight()) {
+                DbioGetResponse response = result.right().get();
+                R resource = runtime.time("get", "parse", () -> ProviderUtils.deserialize(resourceClass, response.plaintext()));
+                out.add(resource.setId(new IdType(id)));
+            } else {
+                Throwable error = result.left().get();
+                if (ids.size() == 1 || error instanceof CircuitOpenException) {
+                    throw runtime.failure(error);
+                }
+                log.warn(String.format("[DbioResource] %s GET failed for id %s: %s", typeName, id, error.getMessage()));
+                out.add(failed(id, error));
+            }
+        }
+        return out;
+    }
+
+    private OperationOutcome failed(String id, Throwable error) {
+        OperationOutcome outcome = ProviderUtils.fhirException(String.format("Unable to read %s/%s: %s", typeName, id, error.getMessage()));
+        ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(outcome, BundleEntrySearchModeEnum.OUTCOME);
+        return outcome;
+    }
+
+    @Override
+    public String getUuid() {
+        return null;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return null;
+    }
+
+    @Override
+    public Integer size() {
+        return ids.size();
+    }
+}
@@ -5,57 +5,73 @@ import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
-import cats.effect.IO;
-import cats.effect.unsafe.IORuntime;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
 import com.dbio.protocol.*;
-import ironoxide.v1.IronOxide;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ImagingStudy;
 import org.hl7.fhir.r4.model.OperationOutcome;
-import org.http4s.client.Client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import scala.Tuple2;
-import scala.runtime.BoxedUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
 
 import static com.dbio.fhirproxy.providers.ProviderUtils.*;
 
 public class ImagingStudyProvider implements IResourceProvider {
     public static String TYPE_NAME = "ImagingStudy";
-    private static final IronOxide<IO> ironCore = IronCore.forUser(PROVIDER_EMAIL, PASSWORD).unsafeRunSync(IORuntime.global());
-    private static final Tuple2<Client<IO>, IO<BoxedUnit>> clientAllocate = DbioResource.allocateClient().unsafeRunSync(IORuntime.global());
-    private static final InjectClients injectClients = new InjectClients(ironCore, clientAllocate._1());
+    private final InjectClients injectClients;
+    private final ProtocolRuntime runtime;
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
-    @Override
-    protected void finalize() throws Throwable {
-        clientAllocate._2.unsafeRunSync(IORuntime.global()); // Close the Client pool
-        super.finalize();
+    public ImagingStudyProvider(ProtocolRuntime runtime) {
+        this.runtime = runtime;
+        this.injectClients = runtime.clients();
     }
 
     @Override
     public Class<? extends IBaseResource> getResourceType() { return ImagingStudy.class; }
 
+    /**
+     * Read one or more resources of the subject by id, e.g. `id=a,b,c`, as a paged Bundle. Ids are
+     * fetched and decrypted concurrently, one page at a time.
+     */
     @Search()
-    public ImagingStudy searchImagingStudy(@RequiredParam(name = "id") String id, @RequiredParam(name = "subjectEmail") String subjectEmail) {
-        DbioGetRequest req = new DbioGetRequest(subjectEmail, PROVIDER_EMAIL, TYPE_NAME, id);
-        log.info(String.format("[DbioResource] ImagingStudy GET: %s", req));
-        DbioGetResponse response = (DbioGetResponse) DbioResource.get(req).apply(injectClients).unsafeRunSync(IORuntime.global());
-        ImagingStudy out = ProviderUtils.deserialize(ImagingStudy.class, response.plaintext().noSpaces());
-        return (ImagingStudy) out.setId(new IdType(id));
+    public IBundleProvider searchImagingStudy(@RequiredParam(name = "id") StringOrListParam id, @RequiredParam(name = "subjectEmail") String subjectEmail, HttpServletRequest request, HttpServletResponse response) {
+        List<String> ids = ProviderUtils.ids(id);
+        log.info(String.format("[DbioResource] ImagingStudy GET of %d ids for %s: %s", ids.size(), subjectEmail, ids));
+        DbioSearchResults<ImagingStudy> results = new DbioSearchResults<>(runtime, ImagingStudy.class, TYPE_NAME, subjectEmail, ids);
+        if (ids.size() == 1) {
+            results.resolve();
+            ProviderUtils.checkETag(ids.get(0), request, response);
+        }
+        return results;
     }
 
+    /**
+     * Create a resource for the subject. With `Prefer: respond-async` it is only journaled before
+     * answering `202 Accepted`, and uploaded in the background.
+     */
     @Create
-    public MethodOutcome createImagingStudy(@ResourceParam ImagingStudy study, @RequiredParam(name = "subjectEmail") String subjectEmail) {
-        if (subjectEmail == null){
-            throw new IllegalArgumentException("Request must contain query parameter `subjectEmail`");
+    public MethodOutcome createImagingStudy(@ResourceParam ImagingStudy study, @RequiredParam(name = "subjectEmail") String subjectEmail, RequestDetails details, HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
+        DbioPostRequest request = runtime.time("post", "encode", () -> ProviderUtils.postRequest(runtime.provider(), TYPE_NAME, subjectEmail, study));
+        String id = request.fhirResourceId();
+        if (ProviderUtils.respondAsync(runtime, servletRequest)) {
+            log.info(String.format("[DbioResource] ImagingStudy POST queued for id: %s", id));
+            return ProviderUtils.accept(runtime, request, details, servletRequest, servletResponse);
+        }
+        DbioPostOutcome outcome = (DbioPostOutcome) runtime.run(DbioResource.create(request).apply(injectClients));
+        if (outcome.created()) {
+            log.info(String.format("[DbioResource] ImagingStudy POST succeeded for id: %s", id));
+        } else {
+            log.info(String.format("[DbioResource] ImagingStudy POST skipped, already written with id: %s", id));
         }
-        String id = ProviderUtils.generateUUID(study);
-        DbioPostRequest request = new DbioPostRequest(subjectEmail, PROVIDER_EMAIL, PROVIDER_ETH_ADDRESS, TYPE_NAME, id, ProviderUtils.serialize(study));
-        DbioPostResponse response = (DbioPostResponse) DbioResource.post(request).apply(injectClients).unsafeRunSync(IORuntime.global());
-        log.info(String.format("[DbioResource] ImagingStudy POST succeeded for id: %s", id));
-        return new MethodOutcome(new IdType(id), new OperationOutcome()).setResource(study.setId(new IdType(id)));
+        return new MethodOutcome(new IdType(id), new OperationOutcome()).setCreated(outcome.created()).setResource(study.setId(new IdType(id)));
     }
 }
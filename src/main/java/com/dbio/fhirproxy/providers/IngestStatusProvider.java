@@ -0,0 +1,68 @@
+package com.dbio.fhirproxy.providers;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import com.dbio.protocol.IngestQueue;
+import com.dbio.protocol.IngestStatus;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import scala.Option;
+
+/**
+ * System level `GET /fhir/$ingest-status?job=<id>` operation reporting where a create accepted
+ * with `Prefer: respond-async` stands: `queued`, `completed` or `failed`. A failed create is kept
+ * as a dead letter; `POST /fhir/$ingest-redrive?job=<id>` queues it again.
+ */
+public class IngestStatusProvider {
+    private final ProtocolRuntime runtime;
+
+    public IngestStatusProvider(ProtocolRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    @Operation(name = "$ingest-status", idempotent = true)
+    @SuppressWarnings("unchecked")
+    public Parameters ingestStatus(@OperationParam(name = "job", min = 1) StringType job) {
+        Option<IngestStatus> found = (Option<IngestStatus>) runtime.run(ingest().status(job.getValue()));
+        if (found.isEmpty()) {
+            throw new ResourceNotFoundException(String.format("Unknown or expired ingest job: %s", job.getValue()));
+        }
+        return parameters(found.get());
+    }
+
+    /**
+     * Queue a dead letter again with a fresh set of attempts.
+     */
+    @Operation(name = "$ingest-redrive")
+    @SuppressWarnings("unchecked")
+    public Parameters ingestRedrive(@OperationParam(name = "job", min = 1) StringType job) {
+        Option<IngestStatus> redriven = (Option<IngestStatus>) runtime.run(ingest().redrive(job.getValue()));
+        if (redriven.isEmpty()) {
+            throw new ResourceNotFoundException(String.format("No failed ingest job: %s", job.getValue()));
+        }
+        return parameters(redriven.get());
+    }
+
+    private IngestQueue ingest() {
+        if (runtime.ingest() == null) {
+            throw new ResourceNotFoundException("Asynchronous ingest is not enabled");
+        }
+        return runtime.ingest();
+    }
+
+    private static Parameters parameters(IngestStatus status) {
+        Parameters out = new Parameters();
+        out.addParameter().setName("job").setValue(new StringType(status.job()));
+        out.addParameter().setName("state").setValue(new StringType(status.state()));
+        out.addParameter().setName("resource").setValue(new Reference(String.format("%s/%s", status.resourceType(), status.resourceId())));
+        out.addParameter().setName("attempts").setValue(new IntegerType(status.attempts()));
+        if (status.error().isDefined()) {
+            out.addParameter().setName("error").setValue(new StringType(status.error().get()));
+        }
+        return out;
+    }
+}
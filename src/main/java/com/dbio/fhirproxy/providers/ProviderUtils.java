@@ -2,41 +2,202 @@ package com.dbio.fhirproxy.providers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import com.dbio.fhirproxy.runtime.ProviderIdentity;
+import com.dbio.protocol.DbioPostRequest;
+import com.dbio.protocol.IngestStatus;
 import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import scala.collection.JavaConverters;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public class ProviderUtils {
-    private static final IParser parser = FhirContext.forR4().newJsonParser();
-    public static String PROVIDER_EMAIL = System.getenv("THIRD_PARTY_EMAIL");
-    public static String PASSWORD = System.getenv("THIRD_PARTY_PRIVATE_KEY");
-    public static String PROVIDER_ETH_ADDRESS = System.getenv("THIRD_PARTY_ETH_ADDRESS");
+    private static final FhirContext context = FhirContext.forR4();
     public static String PROVIDER_DETAILS = "Massachusetts General Hospital";
 
+    /**
+     * Request attribute set to the ingest job a create was queued as; the servlet then answers
+     * `202 Accepted` instead of `201 Created`.
+     */
+    public static final String INGEST_JOB = "com.dbio.fhirproxy.ingestJob";
+
+    /**
+     * A resource encoded to UTF-8 JSON together with the name-based UUID of those bytes.
+     */
+    public static final class EncodedResource {
+        public final byte[] bytes;
+        public final String id;
+
+        private EncodedResource(byte[] bytes, String id) {
+            this.bytes = bytes;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Parsers are cheap to create but not thread safe, so each call gets its own.
+     */
+    private static IParser parser() {
+        return context.newJsonParser();
+    }
+
+    /**
+     * Encode a Resource once to UTF-8 JSON, hashing the bytes with MD5 as they are written. The id
+     * is the same type 3 UUID as UUID.nameUUIDFromBytes over the encoded bytes.
+     */
+    public static <R extends DomainResource> EncodedResource encode(R resource) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError("MD5 not supported", e);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (Writer writer = new OutputStreamWriter(new DigestOutputStream(bytes, md5), StandardCharsets.UTF_8)) {
+            parser().encodeResourceToWriter(resource, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new EncodedResource(bytes.toByteArray(), nameUUID(md5.digest()).toString());
+    }
+
+    private static UUID nameUUID(byte[] md5) {
+        md5[6] &= 0x0f;
+        md5[6] |= 0x30; // version 3
+        md5[8] &= 0x3f;
+        md5[8] |= 0x80; // IETF variant
+        ByteBuffer buffer = ByteBuffer.wrap(md5);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
     /**
      * Hash the Patient resource using the MD5 algorithm and truncate to 64 chars.
      */
     public static <R extends DomainResource> String generateUUID(R resource) {
-        byte[] bytes = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
-        return UUID.nameUUIDFromBytes(bytes).toString();
+        return encode(resource).id;
     }
 
     /**
      * Serialize a Resource object to JSON string.
      */
     public static <R extends DomainResource> String serialize(R resource) {
-        return parser.encodeResourceToString(resource);
+        return parser().encodeResourceToString(resource);
     }
 
     /**
      * Deserialize a JSON string back to a Resource object.
      */
     public static <R extends DomainResource> R deserialize(Class<R> clazz, String json) {
-        return parser.parseResource(clazz, json);
+        return parser().parseResource(clazz, json);
+    }
+
+    /**
+     * Deserialize UTF-8 JSON bytes straight to a Resource object.
+     */
+    public static <R extends DomainResource> R deserialize(Class<R> clazz, byte[] json) {
+        return parser().parseResource(clazz, new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Build the request which uploads a resource for the given subject on behalf of `provider`.
+     */
+    public static <R extends DomainResource> DbioPostRequest postRequest(ProviderIdentity provider, String type, String subjectEmail, R resource) {
+        if (subjectEmail == null) {
+            throw new IllegalArgumentException("Request must contain query parameter `subjectEmail`");
+        }
+        EncodedResource encoded = encode(resource);
+        return new DbioPostRequest(subjectEmail, provider.getEmail(), provider.getEthAddress(), type, encoded.id, encoded.bytes);
+    }
+
+    /**
+     * The distinct ids of an `id` search parameter, in the order given, e.g. `id=a,b,c`.
+     */
+    public static List<String> ids(StringOrListParam param) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (StringParam id : param.getValuesAsQueryTokens()) {
+            if (id.getValue() != null && !id.getValue().isEmpty()) {
+                ids.add(id.getValue());
+            }
+        }
+        if (ids.isEmpty()) {
+            throw new InvalidRequestException("Request must contain at least one `id`");
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Whether a create should be queued for write-behind upload rather than made before answering.
+     */
+    public static boolean respondAsync(ProtocolRuntime runtime, HttpServletRequest request) {
+        String prefer = request.getHeader("Prefer");
+        return runtime.ingest() != null && prefer != null && prefer.contains("respond-async");
+    }
+
+    /**
+     * Journal a create for write-behind upload and answer `202 Accepted`, with the URL of the job's
+     * status in `Content-Location`. The resource id is known up front since it is a content hash.
+     */
+    public static MethodOutcome accept(ProtocolRuntime runtime, DbioPostRequest post, RequestDetails details, HttpServletRequest request, HttpServletResponse response) {
+        IngestStatus status = (IngestStatus) runtime.run(runtime.ingest().submit(post));
+        String location = String.format("%s/$ingest-status?job=%s", details.getFhirServerBase(), status.job());
+        request.setAttribute(INGEST_JOB, status.job());
+        response.setHeader("Content-Location", location);
+        OperationOutcome outcome = new OperationOutcome().addIssue(new OperationOutcome.OperationOutcomeIssueComponent()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Queued as job %s, status at %s", status.job(), location)));
+        return new MethodOutcome(new IdType(post.fhirResourceId()), outcome).setCreated(true);
+    }
+
+    /**
+     * Resource ids are content hashes, so the id is a strong validator for the resource. Answers 304
+     * Not Modified when the client already holds it, and otherwise tags the response with its ETag.
+     * Call only once the resource has been read (possibly from the resource cache), so that a
+     * resource which is gone or no longer readable by the provider is never answered with 304. A
+     * `*` is not honoured: it would match whether or not the resource can be read.
+     */
+    public static void checkETag(String id, HttpServletRequest request, HttpServletResponse response) {
+        String etag = String.format("\"%s\"", id);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag)) {
+                    response.setHeader("ETag", etag);
+                    throw new NotModifiedException("Not Modified");
+                }
+            }
+        }
+        response.setHeader("ETag", etag);
     }
 
     /**
@@ -53,4 +214,8 @@ public class ProviderUtils {
         return out;
     }
 
+    public static <A> scala.collection.immutable.List<A> toScalaList(List<A> ls) {
+        return JavaConverters.asScalaBuffer(ls).toList();
+    }
+
 }
@@ -0,0 +1,123 @@
+package com.dbio.fhirproxy.providers;
+
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.UrlUtil;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import com.dbio.protocol.CircuitOpenException;
+import com.dbio.protocol.DbioPostRequest;
+import com.dbio.protocol.DbioPostOutcome;
+import com.dbio.protocol.DbioResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.util.Either;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * System level batch endpoint (POST /fhir with a Bundle) for creating many resources in one
+ * request. Entries may mix any of the supported resource types, each with its own
+ * `subjectEmail`, and are encrypted and uploaded concurrently. Entries already written by this
+ * proxy are not uploaded again and are reported as `200 OK`.
+ *
+ * Every entry succeeds or fails independently and is reported in the response Bundle. Uploads to
+ * dBio cannot be rolled back, so the all-or-nothing contract of a transaction Bundle cannot be kept
+ * and transactions are refused.
+ */
+public class TransactionProvider {
+    private static final Set<String> SUPPORTED_TYPES = new HashSet<>(Arrays.asList(
+            PatientResourceProvider.TYPE_NAME, DiagnosticResourceProvider.TYPE_NAME, ImagingStudyProvider.TYPE_NAME));
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final ProtocolRuntime runtime;
+
+    public TransactionProvider(ProtocolRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    /**
+     * Build the upload request for one entry. The entry must be a POST to a supported type with a
+     * `subjectEmail` query parameter, e.g. `Patient?subjectEmail=jane@example.com`.
+     */
+    private DbioPostRequest toPostRequest(Bundle.BundleEntryComponent entry) {
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        if (request.getMethod() != Bundle.HTTPVerb.POST) {
+            throw new IllegalArgumentException(String.format("Unsupported method in Bundle entry: %s", request.getMethod()));
+        }
+        String url = request.getUrl() == null ? "" : request.getUrl();
+        int query = url.indexOf('?');
+        String type = query < 0 ? url : url.substring(0, query);
+        Resource resource = entry.getResource();
+        if (!SUPPORTED_TYPES.contains(type) || resource == null || !type.equals(resource.fhirType())) {
+            throw new IllegalArgumentException(String.format("Unsupported resource in Bundle entry: %s", url));
+        }
+        Map<String, String[]> params = UrlUtil.parseQueryString(query < 0 ? "" : url.substring(query + 1));
+        String[] subjectEmail = params.get("subjectEmail");
+        return ProviderUtils.postRequest(runtime.provider(), type, subjectEmail == null ? null : subjectEmail[0], (DomainResource) resource);
+    }
+
+    private static Bundle.BundleEntryResponseComponent created(DbioPostRequest request, DbioPostOutcome outcome) {
+        return new Bundle.BundleEntryResponseComponent()
+                .setStatus(outcome.created() ? "201 Created" : "200 OK")
+                .setLocation(String.format("%s/%s", request.fhirResourceType(), request.fhirResourceId()));
+    }
+
+    private static Bundle.BundleEntryResponseComponent failed(String status, Throwable error) {
+        return new Bundle.BundleEntryResponseComponent()
+                .setStatus(status)
+                .setOutcome(ProviderUtils.fhirException(error.getMessage()));
+    }
+
+    @Transaction
+    @SuppressWarnings("unchecked")
+    public Bundle transaction(@TransactionParam Bundle bundle) {
+        if (bundle.getType() == Bundle.BundleType.TRANSACTION) {
+            throw new InvalidRequestException("Transaction Bundles are not supported since uploads to dBio cannot be rolled back; send a batch Bundle instead");
+        }
+        if (bundle.getType() != Bundle.BundleType.BATCH) {
+            throw new InvalidRequestException(String.format("Unsupported Bundle type: %s", bundle.getType()));
+        }
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        Bundle.BundleEntryResponseComponent[] responses = new Bundle.BundleEntryResponseComponent[entries.size()];
+        List<DbioPostRequest> requests = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                requests.add(toPostRequest(entries.get(i)));
+                positions.add(i);
+            } catch (RuntimeException e) {
+                responses[i] = failed("400 Bad Request", e);
+            }
+        }
+        log.info(String.format("[DbioResource] Bundle POST of %d entries, %d valid", entries.size(), requests.size()));
+
+        List<Either<Throwable, DbioPostOutcome>> results = ProviderUtils.toJavaList(
+                (scala.collection.immutable.List<Either<Throwable, DbioPostOutcome>>) runtime.run(
+                        DbioResource.createAll(ProviderUtils.toScalaList(requests), runtime.getUploadParallelism()).apply(runtime.clients())));
+        for (int j = 0; j < results.size(); j++) {
+            Either<Throwable, DbioPostOutcome> result = results.get(j);
+            if (result.isRight()) {
+                responses[positions.get(j)] = created(requests.get(j), result.right().get());
+            } else {
+                Throwable error = result.left().get();
+                log.warn(String.format("[DbioResource] Bundle entry %d failed: %s", positions.get(j), error.getMessage()));
+                responses[positions.get(j)] = failed(error instanceof CircuitOpenException
+                        ? "503 Service Unavailable" : "500 Internal Server Error", error);
+            }
+        }
+
+        Bundle out = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryResponseComponent response : responses) {
+            out.addEntry().setResponse(response);
+        }
+        return out;
+    }
+}
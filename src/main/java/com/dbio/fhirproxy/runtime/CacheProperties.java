@@ -0,0 +1,100 @@
+package com.dbio.fhirproxy.runtime;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Sizes and lifetimes of the protocol client caches, bound from `dbio.cache.*`.
+ */
+@ConfigurationProperties("dbio.cache")
+public class CacheProperties {
+    private final Bounded users = new Bounded(1024, 600);
+    private final Bounded transferGroups = new Bounded(4096, 0);
+    private final Resources resources = new Resources();
+    private final Bounded locations = new Bounded(16384, 60);
+    private final Bounded accessRequests = new Bounded(4096, 5);
+
+    public Bounded getUsers() {
+        return users;
+    }
+
+    /**
+     * Transfer groups never expire, so only their size is read.
+     */
+    public Bounded getTransferGroups() {
+        return transferGroups;
+    }
+
+    public Resources getResources() {
+        return resources;
+    }
+
+    public Bounded getLocations() {
+        return locations;
+    }
+
+    public Bounded getAccessRequests() {
+        return accessRequests;
+    }
+
+    /**
+     * A cache holding at most `maxSize` entries, each for `ttlSeconds`.
+     */
+    public static class Bounded {
+        private int maxSize;
+        private long ttlSeconds;
+
+        Bounded(int maxSize, long ttlSeconds) {
+            this.maxSize = maxSize;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    /**
+     * Decrypted resources, bounded by their total size rather than their number.
+     */
+    public static class Resources {
+        private long maxBytes = 64L << 20;
+        private long ttlSeconds = 600;
+        private boolean encrypted = false;
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        public void setEncrypted(boolean encrypted) {
+            this.encrypted = encrypted;
+        }
+    }
+}
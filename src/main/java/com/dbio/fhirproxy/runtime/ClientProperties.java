@@ -0,0 +1,51 @@
+package com.dbio.fhirproxy.runtime;
+
+import com.dbio.protocol.ClientSettings;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The shared connection pool to dbio-protocol, bound from `dbio.client.*`.
+ */
+@ConfigurationProperties("dbio.client")
+public class ClientProperties {
+    private int maxConnections = 64;
+    private int maxConnectionsPerHost = 64;
+    private long idleTimeoutMs = 60000;
+    private long requestTimeoutMs = 45000;
+
+    public ClientSettings toSettings() {
+        return new ClientSettings(maxConnections, maxConnectionsPerHost, idleTimeoutMs, requestTimeoutMs);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public long getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    public void setRequestTimeoutMs(long requestTimeoutMs) {
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
+}
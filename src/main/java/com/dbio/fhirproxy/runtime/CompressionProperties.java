@@ -0,0 +1,69 @@
+package com.dbio.fhirproxy.runtime;
+
+import com.dbio.protocol.CompressionSettings;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Compression of resources before encryption and of protocol HTTP bodies, bound from
+ * `dbio.compression.*`.
+ */
+@ConfigurationProperties("dbio.compression")
+public class CompressionProperties {
+    private boolean envelope = false;
+    private int minBytes = 1024;
+    private long maxBytes = 64L << 20;
+    private final Http http = new Http();
+
+    public CompressionSettings toSettings() {
+        return new CompressionSettings(envelope, minBytes, maxBytes, http.acceptGzip, http.gzipRequests);
+    }
+
+    public boolean isEnvelope() {
+        return envelope;
+    }
+
+    public void setEnvelope(boolean envelope) {
+        this.envelope = envelope;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    public void setMinBytes(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Http getHttp() {
+        return http;
+    }
+
+    public static class Http {
+        private boolean acceptGzip = false;
+        private boolean gzipRequests = false;
+
+        public boolean isAcceptGzip() {
+            return acceptGzip;
+        }
+
+        public void setAcceptGzip(boolean acceptGzip) {
+            this.acceptGzip = acceptGzip;
+        }
+
+        public boolean isGzipRequests() {
+            return gzipRequests;
+        }
+
+        public void setGzipRequests(boolean gzipRequests) {
+            this.gzipRequests = gzipRequests;
+        }
+    }
+}
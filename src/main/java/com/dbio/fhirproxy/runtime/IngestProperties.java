@@ -0,0 +1,96 @@
+package com.dbio.fhirproxy.runtime;
+
+import com.dbio.protocol.IngestSettings;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Write-behind upload of creates sent with `Prefer: respond-async`, bound from `dbio.ingest.*`.
+ */
+@ConfigurationProperties("dbio.ingest")
+public class IngestProperties {
+    private boolean enabled = true;
+    private String journalFile = "data/ingest-journal.jsonl";
+    private int workers = 4;
+    private int batchSize = 16;
+    private int maxAttempts = 5;
+    private long retryBaseDelayMs = 1000;
+    private int statusCacheSize = 10000;
+    private int capacity = 10000;
+    private int compactAfter = 1000;
+
+    public IngestSettings toSettings() {
+        return new IngestSettings(workers, batchSize, maxAttempts, retryBaseDelayMs, statusCacheSize, capacity, compactAfter);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public void setJournalFile(String journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryBaseDelayMs() {
+        return retryBaseDelayMs;
+    }
+
+    public void setRetryBaseDelayMs(long retryBaseDelayMs) {
+        this.retryBaseDelayMs = retryBaseDelayMs;
+    }
+
+    public int getStatusCacheSize() {
+        return statusCacheSize;
+    }
+
+    public void setStatusCacheSize(int statusCacheSize) {
+        this.statusCacheSize = statusCacheSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCompactAfter() {
+        return compactAfter;
+    }
+
+    public void setCompactAfter(int compactAfter) {
+        this.compactAfter = compactAfter;
+    }
+}
@@ -0,0 +1,32 @@
+package com.dbio.fhirproxy.runtime;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * The `protocol` health check, part of the readiness group. It is DOWN while the circuit to
+ * dbio-protocol is open, so that traffic is sent elsewhere instead of failing fast with 503s. The
+ * ProtocolRuntime warms up in its constructor, so until it has logged in to IronCore and replayed
+ * its local state the application is not ready in the first place.
+ */
+@Component("protocol")
+public class ProtocolHealthIndicator implements HealthIndicator {
+    private final ProtocolRuntime runtime;
+
+    public ProtocolHealthIndicator(ProtocolRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    @Override
+    public Health health() {
+        boolean circuitOpen = runtime.isCircuitOpen();
+        Health.Builder health = circuitOpen ? Health.down() : Health.up();
+        return health
+                .withDetail("circuitOpen", circuitOpen)
+                .withDetail("warmupMillis", runtime.getWarmupMillis())
+                .withDetail("providerPinned", runtime.isProviderPinned())
+                .withDetail("asyncIngest", runtime.ingest() != null)
+                .build();
+    }
+}
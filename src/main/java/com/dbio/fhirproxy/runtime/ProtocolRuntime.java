@@ -0,0 +1,256 @@
+package com.dbio.fhirproxy.runtime;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import cats.effect.IO;
+import cats.effect.unsafe.IORuntime;
+import com.dbio.protocol.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import ironoxide.v1.IronOxide;
+import ironoxide.v1.common.GroupId;
+import ironoxide.v1.common.UserId;
+import org.http4s.Uri;
+import org.http4s.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import scala.Tuple2;
+import scala.util.Either;
+import scala.runtime.BoxedUnit;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.dbio.fhirproxy.providers.ProviderUtils.fhirException;
+
+/**
+ * Process-wide protocol client state shared by every resource provider: one connection pool to
+ * dbio-protocol, one IronCore device and the protocol client caches, acting for the provider
+ * set by `THIRD_PARTY_EMAIL`, `THIRD_PARTY_PRIVATE_KEY` and `THIRD_PARTY_ETH_ADDRESS`. Under the
+ * `loadtest` profile, in builds made with the `loadtest` Maven profile, `LoadTestRuntime` provides
+ * a stubbed one instead.
+ */
+@Component
+@Profile("!loadtest")
+public class ProtocolRuntime {
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final Tuple2<Client<IO>, IO<BoxedUnit>> clientAllocate;
+    private final InjectClients injectClients;
+    private final AccessRequestCache accessRequests;
+    private final Tuple2<IngestQueue, IO<BoxedUnit>> ingestAllocate; // null when async ingest is disabled
+    private final int uploadParallelism;
+    private final int searchParallelism;
+    private final boolean providerPinned;
+    private final long warmupMillis;
+    private final Resilience circuit; // null for clients built elsewhere
+    private final ProviderIdentity provider;
+
+    @Autowired
+    public ProtocolRuntime(
+            @Value("${THIRD_PARTY_EMAIL}") String providerEmail,
+            @Value("${THIRD_PARTY_PRIVATE_KEY}") String providerPassword,
+            @Value("${THIRD_PARTY_ETH_ADDRESS}") String providerEthAddress,
+            @Value("${dbio.bundle.upload-parallelism:8}") int uploadParallelism,
+            @Value("${dbio.search.parallelism:8}") int searchParallelism,
+            @Value("${dbio.ironcore.device-file:data/ironcore-device.json}") String deviceFile,
+            ClientProperties clientProperties,
+            CacheProperties caches,
+            WritesProperties writeIndex,
+            ResilienceProperties resilienceProperties,
+            CompressionProperties compressionProperties,
+            IngestProperties ingestProperties,
+            MeterRegistry registry) {
+        this.provider = new ProviderIdentity(providerEmail, providerPassword, providerEthAddress);
+        ClientMetrics metrics = new ClientMetrics(registry);
+        ClientSettings settings = clientProperties.toSettings();
+        ResilienceSettings resilience = resilienceProperties.toSettings();
+        CompressionSettings compression = compressionProperties.toSettings();
+        long start = System.nanoTime();
+        log.info(String.format("[ProtocolRuntime] Allocating protocol client: %s, %s, %s", settings, resilience, compression));
+        this.circuit = run(Resilience.create(resilience, metrics));
+        this.clientAllocate = run(DbioResource.allocateClient(settings, circuit, compression, metrics));
+        Memo<String, User> users = run(DbioResource.userCache(caches.getUsers().getMaxSize(), caches.getUsers().getTtlSeconds()));
+        Memo<Tuple2<UserId, UserId>, GroupId> groups = run(IronCore.transferGroups(caches.getTransferGroups().getMaxSize()));
+        ResourceCache resources = run(ResourceCache.create(
+                caches.getResources().getMaxBytes(), caches.getResources().getTtlSeconds(), caches.getResources().isEncrypted()));
+        Memo<ResourceKey, Uri> locations = run(DbioResource.locationCache(caches.getLocations().getMaxSize(), caches.getLocations().getTtlSeconds()));
+        this.accessRequests = run(AccessRequestCache.create(caches.getAccessRequests().getMaxSize(), caches.getAccessRequests().getTtlSeconds()));
+        // IronCore login, the write index replay and the provider's own lookup are independent
+        Tuple2<Tuple2<IronOxide<IO>, WriteIndex>, Either<Throwable, User>> warm = run(
+                IronCore.forUser(provider.getEmail(), provider.getPassword(), deviceFile)
+                        .both(WriteIndex.open(writeIndex.getIndexFile(), writeIndex.getIndexMaxSize()))
+                        .both(DbioResource.pinUser(provider.getEmail(), users, clientAllocate._1()).attempt()));
+        IronOxide<IO> ironCore = warm._1()._1();
+        WriteIndex writes = warm._1()._2();
+        this.providerPinned = warm._2().isRight();
+        if (warm._2().isLeft()) {
+            log.warn(String.format("[ProtocolRuntime] Unable to resolve provider %s at startup: %s", provider.getEmail(), warm._2().left().get().getMessage()));
+        }
+        DocumentCrypto crypto = Compression.crypto(IronCore.crypto(ironCore, groups, metrics), compression, metrics);
+        this.injectClients = new InjectClients(crypto, clientAllocate._1(), users, resources, locations, writes, metrics);
+        this.uploadParallelism = uploadParallelism;
+        this.searchParallelism = searchParallelism;
+        if (ingestProperties.isEnabled()) {
+            IngestSettings ingest = ingestProperties.toSettings();
+            log.info(String.format("[ProtocolRuntime] Starting write-behind ingest from %s: %s", ingestProperties.getJournalFile(), ingest));
+            this.ingestAllocate = run(IngestQueue.start(ingestProperties.getJournalFile(), ingest, injectClients));
+        } else {
+            this.ingestAllocate = null;
+        }
+        this.warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info(String.format("[ProtocolRuntime] Warm in %d ms", warmupMillis));
+    }
+
+    /**
+     * Wrap protocol clients built elsewhere, e.g. against in-process stubs, acting as `provider`,
+     * uploading and searching `parallelism` resources at a time and caching access request statuses
+     * as `caches` says. Closing this runtime leaves their client open.
+     */
+    public ProtocolRuntime(InjectClients injectClients, ProviderIdentity provider, int parallelism, CacheProperties caches) {
+        this.provider = provider;
+        this.clientAllocate = new Tuple2<>(injectClients.client(), IO.unit());
+        this.injectClients = injectClients;
+        this.accessRequests = run(AccessRequestCache.create(caches.getAccessRequests().getMaxSize(), caches.getAccessRequests().getTtlSeconds()));
+        this.ingestAllocate = null;
+        this.uploadParallelism = parallelism;
+        this.searchParallelism = parallelism;
+        this.providerPinned = false;
+        this.warmupMillis = 0;
+        this.circuit = null;
+    }
+
+    /**
+     * The healthcare provider every call is made on behalf of.
+     */
+    public ProviderIdentity provider() {
+        return provider;
+    }
+
+    /**
+     * Whether calls to dbio-protocol are currently refused by the circuit breaker.
+     */
+    public boolean isCircuitOpen() {
+        return circuit != null && (Boolean) run(circuit.circuitOpen());
+    }
+
+    /**
+     * Whether this provider's own dBio identity was resolved at startup, so that reads only look up
+     * the subject. Otherwise it is looked up lazily on the first read instead.
+     */
+    public boolean isProviderPinned() {
+        return providerPinned;
+    }
+
+    /**
+     * How long logging in to IronCore, allocating the client and replaying local state took.
+     */
+    public long getWarmupMillis() {
+        return warmupMillis;
+    }
+
+    public InjectClients clients() {
+        return injectClients;
+    }
+
+    public Client<IO> client() {
+        return clientAllocate._1();
+    }
+
+    /**
+     * Access request calls through the short-lived status cache.
+     */
+    public AccessRequestCache accessRequests() {
+        return accessRequests;
+    }
+
+    /**
+     * The write-behind queue for creates made with `Prefer: respond-async`, or null when disabled.
+     */
+    public IngestQueue ingest() {
+        return ingestAllocate == null ? null : ingestAllocate._1();
+    }
+
+    /**
+     * Number of resources from one Bundle encrypted and uploaded at the same time.
+     */
+    public int getUploadParallelism() {
+        return uploadParallelism;
+    }
+
+    /**
+     * Number of resources from one search fetched and decrypted at the same time.
+     */
+    public int getSearchParallelism() {
+        return searchParallelism;
+    }
+
+    public ClientMetrics metrics() {
+        return injectClients.metrics();
+    }
+
+    /**
+     * Run `work` on the calling thread, timing it as `stage` of a protocol client `operation`
+     * alongside the stages timed inside the client.
+     */
+    public <A> A time(String operation, String stage, Supplier<A> work) {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            A out = work.get();
+            outcome = "success";
+            return out;
+        } finally {
+            metrics().stageTimer(operation, stage, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Run a protocol client effect to completion on the calling thread. While the circuit to
+     * dbio-protocol is open this fails fast with a 503 telling the caller when to retry.
+     */
+    public <A> A run(IO<A> io) {
+        try {
+            return io.unsafeRunSync(IORuntime.global());
+        } catch (CircuitOpenException e) {
+            throw failure(e);
+        }
+    }
+
+    /**
+     * The exception to throw for a protocol client failure returned rather than raised, mapped the
+     * same way as failures raised by {@link #run(IO)}.
+     */
+    public RuntimeException failure(Throwable error) {
+        if (error instanceof CircuitOpenException) {
+            CircuitOpenException open = (CircuitOpenException) error;
+            UnclassifiedServerFailureException unavailable =
+                    new UnclassifiedServerFailureException(503, open.getMessage(), fhirException(open.getMessage()));
+            unavailable.addResponseHeader("Retry-After", Long.toString(Math.max(1, open.retryAfter().toSeconds())));
+            return unavailable;
+        }
+        if (error instanceof IngestQueueFullException) {
+            UnclassifiedServerFailureException full =
+                    new UnclassifiedServerFailureException(429, error.getMessage(), fhirException(error.getMessage()));
+            full.addResponseHeader("Retry-After", "1");
+            return full;
+        }
+        if (error instanceof RuntimeException) {
+            return (RuntimeException) error;
+        }
+        return new InternalErrorException(error);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (ingestAllocate != null) {
+            log.info("[ProtocolRuntime] Stopping write-behind ingest");
+            run(ingestAllocate._2());
+        }
+        log.info("[ProtocolRuntime] Closing protocol client pool");
+        run(clientAllocate._2());
+    }
+}
@@ -0,0 +1,37 @@
+package com.dbio.fhirproxy.runtime;
+
+/**
+ * The healthcare provider this proxy acts as: every resource is written and read, and every access
+ * request made, on its behalf. Held by the {@link ProtocolRuntime}.
+ */
+public final class ProviderIdentity {
+    private final String email;
+    private final String password;
+    private final String ethAddress;
+
+    public ProviderIdentity(String email, String password, String ethAddress) {
+        this.email = email;
+        this.password = password;
+        this.ethAddress = ethAddress;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * The provider's IronCore password, or null when it does not log in to IronCore.
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    public String getEthAddress() {
+        return ethAddress;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ProviderIdentity(%s, %s)", email, ethAddress);
+    }
+}
@@ -0,0 +1,98 @@
+package com.dbio.fhirproxy.runtime;
+
+import com.dbio.protocol.ResilienceSettings;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Deadlines, hedging, retries and the circuit breaker for protocol calls, bound from
+ * `dbio.resilience.*`.
+ */
+@ConfigurationProperties("dbio.resilience")
+public class ResilienceProperties {
+    private long lookupTimeoutMs = 5000;
+    private long readTimeoutMs = 15000;
+    private long writeTimeoutMs = 30000;
+    private double hedgeQuantile = 0.95;
+    private long hedgeMinDelayMs = 50;
+    private int maxRetries = 2;
+    private long retryBaseDelayMs = 100;
+    private int breakerFailureThreshold = 5;
+    private long breakerResetMs = 10000;
+
+    public ResilienceSettings toSettings() {
+        return new ResilienceSettings(lookupTimeoutMs, readTimeoutMs, writeTimeoutMs, hedgeQuantile, hedgeMinDelayMs,
+                maxRetries, retryBaseDelayMs, breakerFailureThreshold, breakerResetMs);
+    }
+
+    public long getLookupTimeoutMs() {
+        return lookupTimeoutMs;
+    }
+
+    public void setLookupTimeoutMs(long lookupTimeoutMs) {
+        this.lookupTimeoutMs = lookupTimeoutMs;
+    }
+
+    public long getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public void setReadTimeoutMs(long readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public long getWriteTimeoutMs() {
+        return writeTimeoutMs;
+    }
+
+    public void setWriteTimeoutMs(long writeTimeoutMs) {
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+
+    public double getHedgeQuantile() {
+        return hedgeQuantile;
+    }
+
+    public void setHedgeQuantile(double hedgeQuantile) {
+        this.hedgeQuantile = hedgeQuantile;
+    }
+
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+        this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryBaseDelayMs() {
+        return retryBaseDelayMs;
+    }
+
+    public void setRetryBaseDelayMs(long retryBaseDelayMs) {
+        this.retryBaseDelayMs = retryBaseDelayMs;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+        this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    public long getBreakerResetMs() {
+        return breakerResetMs;
+    }
+
+    public void setBreakerResetMs(long breakerResetMs) {
+        this.breakerResetMs = breakerResetMs;
+    }
+}
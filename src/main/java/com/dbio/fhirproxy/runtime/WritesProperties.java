@@ -0,0 +1,29 @@
+package com.dbio.fhirproxy.runtime;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The index of resources already written, bound from `dbio.writes.*`. An empty file keeps it in
+ * memory only.
+ */
+@ConfigurationProperties("dbio.writes")
+public class WritesProperties {
+    private String indexFile = "data/write-index.jsonl";
+    private int indexMaxSize = 100000;
+
+    public String getIndexFile() {
+        return indexFile;
+    }
+
+    public void setIndexFile(String indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public int getIndexMaxSize() {
+        return indexMaxSize;
+    }
+
+    public void setIndexMaxSize(int indexMaxSize) {
+        this.indexMaxSize = indexMaxSize;
+    }
+}
@@ -1,35 +1,184 @@
 package com.dbio.fhirproxy.servlet;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import com.dbio.fhirproxy.providers.DbioAccessRequestProvider;
 import com.dbio.fhirproxy.providers.DiagnosticResourceProvider;
 import com.dbio.fhirproxy.providers.ImagingStudyProvider;
+import com.dbio.fhirproxy.providers.IngestStatusProvider;
 import com.dbio.fhirproxy.providers.PatientResourceProvider;
+import com.dbio.fhirproxy.providers.ProviderUtils;
+import com.dbio.fhirproxy.providers.TransactionProvider;
+import com.dbio.fhirproxy.runtime.ProtocolRuntime;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.env.Environment;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-@WebServlet("/*")
+@WebServlet(urlPatterns = "/*", asyncSupported = true)
 public class FhirRestfulServer extends RestfulServer {
+    private static final int TOO_MANY_REQUESTS = 429;
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
     private final ApplicationContext applicationContext;
+    private RequestExecutor requestExecutor;
+    private MeterRegistry registry;
+    private final Set<String> resourceNames = new HashSet<>();
+    private final ConcurrentMap<String, Timer> requestTimers = new ConcurrentHashMap<>();
 
     public FhirRestfulServer(ApplicationContext context) {
         this.applicationContext = context;
-         try {
-             initialize();
-         } catch (Exception e) {
-             System.out.println("Unable to initialize FHIR Proxy");
-         };
+        try {
+            initialize();
+        } catch (ServletException e) {
+            throw new IllegalStateException("Unable to initialize FHIR Proxy", e);
+        }
     }
 
     @Override
     protected void initialize() throws ServletException {
         super.initialize();
-        System.loadLibrary("ironoxide_java"); // Set up IronCore binary
         setFhirContext(FhirContext.forR4());
-        setResourceProviders(new DiagnosticResourceProvider(), new ImagingStudyProvider(), new PatientResourceProvider(), new DbioAccessRequestProvider());
+        Environment environment = applicationContext.getEnvironment();
+        ProtocolRuntime runtime = applicationContext.getBean(ProtocolRuntime.class);
+        requestExecutor = applicationContext.getBean(RequestExecutor.class);
+        registry = applicationContext.getBean(MeterRegistry.class);
+        setResourceProviders(new DiagnosticResourceProvider(runtime), new ImagingStudyProvider(runtime), new PatientResourceProvider(runtime), new DbioAccessRequestProvider(runtime));
+        setPlainProviders(new TransactionProvider(runtime), new IngestStatusProvider(runtime));
+        FifoMemoryPagingProvider paging = new FifoMemoryPagingProvider(environment.getProperty("dbio.search.paging.cached-searches", Integer.class, 100));
+        paging.setDefaultPageSize(environment.getProperty("dbio.search.paging.default-page-size", Integer.class, 20));
+        paging.setMaximumPageSize(environment.getProperty("dbio.search.paging.max-page-size", Integer.class, 100));
+        setPagingProvider(paging);
+        for (IResourceProvider provider : getResourceProviders()) {
+            resourceNames.add(getFhirContext().getResourceType(provider.getResourceType()));
+        }
+    }
+
+    /**
+     * Hand each request to the RequestExecutor through servlet async dispatch, so container threads
+     * are not held for the protocol and IronCore round trips; the AsyncContext is completed when the
+     * request's IO finishes. Requests beyond the in-flight cap are rejected immediately with 429.
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (requestExecutor == null || !requestExecutor.isEnabled() || !request.isAsyncSupported()) {
+            serve(request, response);
+            return;
+        }
+        // No container timeout: each protocol call is already bounded by the client's request timeout.
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        boolean accepted;
+        try {
+            accepted = requestExecutor.trySubmit(() -> handle(async), async::complete);
+        } catch (RejectedExecutionException e) {
+            reject(async, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FHIR proxy is shutting down");
+            return;
+        }
+        if (!accepted) {
+            reject(async, TOO_MANY_REQUESTS, String.format("FHIR proxy is at its limit of %d requests in flight", requestExecutor.getMaxInFlight()));
+        }
+    }
+
+    private void handle(AsyncContext async) {
+        HttpServletRequest request = (HttpServletRequest) async.getRequest();
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+            serve(request, response);
+        } catch (Exception e) {
+            log.error(String.format("Unhandled error serving %s %s", request.getMethod(), request.getRequestURI()), e);
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Serve a request, timing it as `fhir.requests` by resource type, method and response status.
+     */
+    private void serve(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.service(request, accepting(request, response));
+            failed = false;
+        } finally {
+            if (registry != null) {
+                requestTimer(resourceName(request), request.getMethod(), failed ? "500" : Integer.toString(response.getStatus()))
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * The `fhir.requests` timer for a resource type, method and status, registered on first use.
+     */
+    private Timer requestTimer(String resource, String method, String status) {
+        return requestTimers.computeIfAbsent(String.join(" ", resource, method, status), key -> Timer.builder("fhir.requests")
+                .tags("resource", resource, "method", method, "status", status)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    /**
+     * HAPI answers every create with `201 Created`; a create only queued for write-behind upload is
+     * answered with `202 Accepted` instead.
+     */
+    private static HttpServletResponse accepting(HttpServletRequest request, HttpServletResponse response) {
+        return new HttpServletResponseWrapper(response) {
+            @Override
+            public void setStatus(int status) {
+                boolean queued = status == HttpServletResponse.SC_CREATED && request.getAttribute(ProviderUtils.INGEST_JOB) != null;
+                super.setStatus(queued ? HttpServletResponse.SC_ACCEPTED : status);
+            }
+        };
+    }
+
+    /**
+     * The resource type a request is for, `system` for requests to the server base such as
+     * Bundles, or `other` for unknown paths so the tag stays bounded.
+     */
+    private String resourceName(HttpServletRequest request) {
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        String[] segments = path.split("/");
+        String first = segments.length > 1 ? segments[1] : "";
+        if (first.isEmpty()) {
+            return "system";
+        }
+        return resourceNames.contains(first) ? first : "other";
+    }
+
+    private void reject(AsyncContext async, int status, String diagnostic) throws IOException {
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        if (registry != null) {
+            registry.counter("fhir.requests.rejected", "status", Integer.toString(status)).increment();
+        }
+        try {
+            response.setStatus(status);
+            response.setContentType("application/fhir+json");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.getWriter().write(getFhirContext().newJsonParser().encodeResourceToString(ProviderUtils.fhirException(diagnostic)));
+        } finally {
+            async.complete();
+        }
     }
 }
@@ -0,0 +1,121 @@
+package com.dbio.fhirproxy.servlet;
+
+import cats.effect.IO;
+import cats.effect.unsafe.IORuntime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import scala.concurrent.ExecutionContext;
+import scala.runtime.BoxedUnit;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs FHIR requests as IOs started with `unsafeRunAsync`, off the servlet container's threads,
+ * with a hard cap on requests in flight. HAPI's providers block, so each request runs on the
+ * cats-effect blocking pool, or on a virtual thread when the JDK has them (21+). Either way the
+ * container thread returns as soon as the request is handed off, and requests past the cap are
+ * rejected at once instead of queueing.
+ */
+@Component
+public class RequestExecutor {
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final boolean enabled;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final ExecutorService virtualThreads; // null when the JDK has none
+    private final ExecutionContext virtualContext;
+    private volatile boolean closed;
+
+    public RequestExecutor(
+            @Value("${dbio.server.async.enabled:true}") boolean enabled,
+            @Value("${dbio.server.max-in-flight:256}") int maxInFlight) {
+        this.enabled = enabled;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+        this.virtualThreads = enabled ? virtualThreads() : null;
+        this.virtualContext = virtualThreads == null ? null : ExecutionContext.fromExecutorService(virtualThreads);
+        if (enabled) {
+            log.info(String.format("[RequestExecutor] Handling up to %d requests asynchronously on %s", maxInFlight,
+                    virtualThreads == null ? "the blocking pool" : "virtual threads"));
+        }
+    }
+
+    /**
+     * Virtual threads (JDK 21+), found reflectively since this project targets Java 8, or null
+     * when the JDK has none.
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Start the task if a slot is free, calling `done` on the IO's completion however it ends.
+     * Returns false without blocking when the cap is reached.
+     *
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public boolean trySubmit(Runnable task, Runnable done) {
+        if (closed) {
+            throw new RejectedExecutionException("Request executor is closed");
+        }
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        IO<BoxedUnit> work = virtualThreads == null
+                ? IO.blocking(() -> run(task))
+                : IO.apply(() -> run(task)).evalOn(virtualContext);
+        work.guarantee(IO.apply(() -> {
+            permits.release();
+            return BoxedUnit.UNIT;
+        })).unsafeRunAsync(outcome -> {
+            if (outcome.isLeft()) {
+                log.error("[RequestExecutor] Request failed outside the servlet", outcome.left().get());
+            }
+            done.run();
+            return BoxedUnit.UNIT;
+        }, IORuntime.global());
+        return true;
+    }
+
+    private static BoxedUnit run(Runnable task) {
+        task.run();
+        return BoxedUnit.UNIT;
+    }
+
+    /**
+     * Refuse new requests and wait for those in flight to finish.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        closed = true;
+        if (enabled && !permits.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS)) {
+            log.warn(String.format("[RequestExecutor] Closing with %d requests still in flight", getInFlight()));
+        }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+}